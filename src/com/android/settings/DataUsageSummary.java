@@ -55,10 +55,12 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -131,8 +133,10 @@ import com.android.internal.telephony.Phone;
 import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.CycleSummaryIndex;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsSnapshots;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -184,12 +188,21 @@ public class DataUsageSummary extends Fragment {
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    /**
+     * Broadcast sent by NetworkStatsService after it persists new stats; the
+     * constant lives in services, so mirror it here.
+     */
+    private static final String ACTION_NETWORK_STATS_UPDATED =
+            "com.android.server.action.NETWORK_STATS_UPDATED";
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsSnapshots mSnapshots;
+    private CycleSummaryIndex mCycleIndex;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -303,6 +316,10 @@ public class DataUsageSummary extends Fragment {
             throw new RuntimeException(e);
         }
 
+        // snapshots outlive tab changes, and are only dropped once stats change
+        mSnapshots = new NetworkStatsSnapshots();
+        mCycleIndex = new CycleSummaryIndex(mStatsSession, mSnapshots, mCycleIndexListener);
+
         mTabHost = (TabHost) view.findViewById(android.R.id.tabhost);
         mTabsContainer = (ViewGroup) view.findViewById(R.id.tabs_container);
         mTabWidget = (TabWidget) view.findViewById(android.R.id.tabs);
@@ -414,6 +431,9 @@ public class DataUsageSummary extends Fragment {
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
 
+        getActivity().registerReceiver(
+                mStatsUpdatedReceiver, new IntentFilter(ACTION_NETWORK_STATS_UPDATED));
+
         // kick off background task to update stats
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -431,12 +451,28 @@ public class DataUsageSummary extends Fragment {
             @Override
             protected void onPostExecute(Void result) {
                 if (isAdded()) {
+                    // stats were just polled, so anything we have is stale
+                    mSnapshots.invalidate();
                     updateBody();
                 }
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        getActivity().unregisterReceiver(mStatsUpdatedReceiver);
+    }
+
+    private BroadcastReceiver mStatsUpdatedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // only drop snapshots; visible data is refreshed on next bind
+            mSnapshots.invalidate();
+        }
+    };
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -564,6 +600,7 @@ public class DataUsageSummary extends Fragment {
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        mCycleIndex.stop();
         TrafficStats.closeQuietly(mStatsSession);
 
         if (this.isRemoving()) {
@@ -990,6 +1027,20 @@ public class DataUsageSummary extends Fragment {
             mCycleAdapter.setChangePossible(false);
         }
 
+        // summarize default inspection range of every cycle in background,
+        // so switching between cycles can bind without waiting on a loader.
+        mCycleIndex.setTemplate(mTemplate);
+        final NetworkStatsHistory history = mChartData != null ? mChartData.network : null;
+        for (int i = 0; i < mCycleAdapter.getCount(); i++) {
+            final CycleItem item = mCycleAdapter.getItem(i);
+            if (item instanceof CycleChangeItem) continue;
+
+            final long[] range = ChartDataUsageView.getDefaultInspectRange(
+                    history, item.start, item.end);
+            mCycleIndex.addRange(range[0], range[1]);
+        }
+        mCycleIndex.start();
+
         // force pick the current cycle (first item)
         if (mCycleAdapter.getCount() > 0) {
             final int position = mCycleAdapter.findNearestPosition(previousItem);
@@ -1160,9 +1211,18 @@ public class DataUsageSummary extends Fragment {
                 entry = mChartData.network.getValues(start, end, now, null);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            final NetworkStats indexed = mCycleIndex.getSummary(start, end);
+            if (indexed != null) {
+                // bind indexed summary right away; index will deliver again
+                // if it's still refreshing this range.
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                bindSummaryStats(indexed);
+            } else {
+                // kick off loader for detailed stats
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1187,7 +1247,7 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, mSnapshots, args);
         }
 
         @Override
@@ -1218,15 +1278,12 @@ public class DataUsageSummary extends Fragment {
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, mSnapshots, args);
         }
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedAppIds = mPolicyManager.getAppsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedAppIds);
-            updateEmptyVisible();
+            bindSummaryStats(data);
         }
 
         @Override
@@ -1234,13 +1291,38 @@ public class DataUsageSummary extends Fragment {
             mAdapter.bindStats(null, new int[0]);
             updateEmptyVisible();
         }
+    };
+
+    private final CycleSummaryIndex.Listener mCycleIndexListener = new CycleSummaryIndex
+            .Listener() {
+        @Override
+        public void onSummaryIndexed(long start, long end, NetworkStats stats) {
+            if (!isAdded() || isAppDetailMode()) return;
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+            // only bind when user is still inspecting this exact range
+            if (start == mChart.getInspectStart() && end == mChart.getInspectEnd()) {
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                bindSummaryStats(stats);
+            }
         }
     };
 
+    /**
+     * Bind per-UID summary {@link NetworkStats} to {@link #mAdapter}, from
+     * either {@link SummaryForAllUidLoader} or {@link #mCycleIndex}.
+     */
+    private void bindSummaryStats(NetworkStats stats) {
+        final int[] restrictedAppIds = mPolicyManager.getAppsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        mAdapter.bindStats(stats, restrictedAppIds);
+        updateEmptyVisible();
+    }
+
+    private void updateEmptyVisible() {
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
+
     @Deprecated
     private boolean isMobilePolicySplit() {
         final Context context = getActivity();
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.PackageStats;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide record of recent {@link PackageStats}, so that moving between
+ * Storage and Apps doesn't ask {@code installd} to measure the same packages
+ * again. Stats are only reused for {@link #MAX_AGE_MS}, since apps keep
+ * writing data in the meantime.
+ */
+public class PackageSizeCache {
+    private static final long MAX_AGE_MS = 60 * 1000;
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+
+    private static class Entry {
+        final PackageStats stats;
+        final long time;
+
+        Entry(PackageStats stats, long time) {
+            this.stats = stats;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Record stats just measured for a package.
+     */
+    public static void put(PackageStats stats) {
+        final Entry entry = new Entry(new PackageStats(stats), SystemClock.elapsedRealtime());
+        synchronized (sEntries) {
+            sEntries.put(stats.packageName, entry);
+        }
+    }
+
+    /**
+     * Return recently measured stats of the given package, or {@code null}.
+     * The returned stats must not be modified.
+     */
+    public static PackageStats get(String packageName) {
+        synchronized (sEntries) {
+            final Entry entry = sEntries.get(packageName);
+            if (entry == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - entry.time > MAX_AGE_MS) {
+                sEntries.remove(packageName);
+                return null;
+            }
+            return entry.stats;
+        }
+    }
+
+    /**
+     * Forget stats of the given package, such as when it was updated.
+     */
+    public static void invalidate(String packageName) {
+        synchronized (sEntries) {
+            sEntries.remove(packageName);
+        }
+    }
+}
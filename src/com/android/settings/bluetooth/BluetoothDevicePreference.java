@@ -28,6 +28,7 @@ import android.text.Html;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -48,12 +49,46 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private static int sDimAlpha = Integer.MIN_VALUE;
 
+    /** Signal strengths are sorted in buckets of this many dBm. */
+    private static final int RSSI_BUCKET_SIZE = 10;
+
+    /** How far signal has to leave its bucket before the device moves. */
+    private static final int RSSI_HYSTERESIS = 3;
+
+    static final int NO_RSSI_BUCKET = Integer.MIN_VALUE;
+
     private final CachedBluetoothDevice mCachedDevice;
 
     private OnClickListener mOnSettingsClickListener;
 
     private AlertDialog mDisconnectDialog;
 
+    /**
+     * Sort key as of the last refresh, so that sorting the list doesn't ask
+     * the Bluetooth service for the state of every device it compares.
+     */
+    private boolean mSortConnected;
+    private boolean mSortBonded;
+    private boolean mSortVisible;
+    private int mSortRssiBucket = NO_RSSI_BUCKET;
+    private String mSortName;
+
+    /** Whether {@link #mRefreshCallback} is waiting for the next frame. */
+    private boolean mRefreshPending;
+
+    /**
+     * Refreshes once per frame however often attributes change, since a
+     * noisy discovery reports each device many times a second.
+     */
+    private final Choreographer.FrameCallback mRefreshCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mRefreshPending = false;
+            refresh();
+        }
+    };
+
     public BluetoothDevicePreference(Context context, CachedBluetoothDevice cachedDevice) {
         super(context);
 
@@ -71,7 +106,7 @@ public final class BluetoothDevicePreference extends Preference implements
 
         mCachedDevice.registerCallback(this);
 
-        onDeviceAttributesChanged();
+        refresh();
     }
 
     CachedBluetoothDevice getCachedDevice() {
@@ -86,6 +121,10 @@ public final class BluetoothDevicePreference extends Preference implements
     protected void onPrepareForRemoval() {
         super.onPrepareForRemoval();
         mCachedDevice.unregisterCallback(this);
+        if (mRefreshPending) {
+            Choreographer.getInstance().removeFrameCallback(mRefreshCallback);
+            mRefreshPending = false;
+        }
         if (mDisconnectDialog != null) {
             mDisconnectDialog.dismiss();
             mDisconnectDialog = null;
@@ -93,6 +132,13 @@ public final class BluetoothDevicePreference extends Preference implements
     }
 
     public void onDeviceAttributesChanged() {
+        if (!mRefreshPending) {
+            mRefreshPending = true;
+            Choreographer.getInstance().postFrameCallback(mRefreshCallback);
+        }
+    }
+
+    private void refresh() {
         /*
          * The preference framework takes care of making sure the value has
          * changed before proceeding. It will also call notifyChanged() if
@@ -115,8 +161,53 @@ public final class BluetoothDevicePreference extends Preference implements
         // Used to gray out the item
         setEnabled(!mCachedDevice.isBusy());
 
-        // This could affect ordering, so notify that
-        notifyHierarchyChanged();
+        // Only re-sort when this device would move
+        if (updateSortKey()) {
+            notifyHierarchyChanged();
+        }
+    }
+
+    /**
+     * Take a new snapshot of the sort key of the device.
+     *
+     * @return {@code true} if it changed.
+     */
+    private boolean updateSortKey() {
+        final boolean connected = mCachedDevice.isConnected();
+        final boolean bonded = mCachedDevice.getBondState() == BluetoothDevice.BOND_BONDED;
+        final boolean visible = mCachedDevice.isVisible();
+        final int rssiBucket = getRssiBucket(mSortRssiBucket, mCachedDevice.getRssi());
+        final String name = mCachedDevice.getName();
+
+        if (connected == mSortConnected && bonded == mSortBonded && visible == mSortVisible
+                && rssiBucket == mSortRssiBucket && TextUtils.equals(name, mSortName)) {
+            return false;
+        }
+        mSortConnected = connected;
+        mSortBonded = bonded;
+        mSortVisible = visible;
+        mSortRssiBucket = rssiBucket;
+        mSortName = name;
+        return true;
+    }
+
+    /**
+     * Return bucket of the given signal strength. The current bucket is kept
+     * until signal is more than {@link #RSSI_HYSTERESIS} outside of it, so
+     * a device near the edge of a bucket doesn't keep swapping places.
+     *
+     * @param currentBucket bucket of the device so far, or
+     *            {@link #NO_RSSI_BUCKET}.
+     */
+    static int getRssiBucket(int currentBucket, short rssi) {
+        if (currentBucket != NO_RSSI_BUCKET) {
+            final int low = currentBucket * RSSI_BUCKET_SIZE - RSSI_HYSTERESIS;
+            final int high = (currentBucket + 1) * RSSI_BUCKET_SIZE + RSSI_HYSTERESIS;
+            if (rssi >= low && rssi < high) {
+                return currentBucket;
+            }
+        }
+        return (int) Math.floor(rssi / (double) RSSI_BUCKET_SIZE);
     }
 
     @Override
@@ -166,8 +257,25 @@ public final class BluetoothDevicePreference extends Preference implements
             return super.compareTo(another);
         }
 
-        return mCachedDevice
-                .compareTo(((BluetoothDevicePreference) another).mCachedDevice);
+        // Same order as CachedBluetoothDevice.compareTo(), from the snapshot
+        final BluetoothDevicePreference other = (BluetoothDevicePreference) another;
+
+        // Connected above not connected
+        if (mSortConnected != other.mSortConnected) return mSortConnected ? -1 : 1;
+
+        // Paired above not paired
+        if (mSortBonded != other.mSortBonded) return mSortBonded ? -1 : 1;
+
+        // Visible above not visible
+        if (mSortVisible != other.mSortVisible) return mSortVisible ? -1 : 1;
+
+        // Stronger signal above weaker signal
+        if (mSortRssiBucket != other.mSortRssiBucket) {
+            return mSortRssiBucket > other.mSortRssiBucket ? -1 : 1;
+        }
+
+        // Fallback on name
+        return mSortName.compareTo(other.mSortName);
     }
 
     void onClicked() {
@@ -28,10 +28,11 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * BluetoothEventManager receives broadcasts and callbacks from the Bluetooth
@@ -48,8 +49,50 @@ final class BluetoothEventManager {
     private final Map<String, Handler> mHandlerMap;
     private Context mContext;
 
-    private final Collection<BluetoothCallback> mCallbacks =
-            new ArrayList<BluetoothCallback>();
+    /** Events of {@link BluetoothCallback} that can be registered for. */
+    static final int EVENT_BLUETOOTH_STATE_CHANGED = 1 << 0;
+    static final int EVENT_SCANNING_STATE_CHANGED = 1 << 1;
+    static final int EVENT_DEVICE_ADDED = 1 << 2;
+    static final int EVENT_DEVICE_DELETED = 1 << 3;
+    static final int EVENT_DEVICE_BOND_STATE_CHANGED = 1 << 4;
+    private static final int EVENT_COUNT = 5;
+
+    /** Dispatches slower than a frame are logged. */
+    private static final long SLOW_DISPATCH_NANOS = 16 * 1000 * 1000;
+    /** At most one slow dispatch of each action is logged per interval. */
+    private static final long SLOW_DISPATCH_LOG_INTERVAL_NANOS = 60 * 1000 * 1000 * 1000L;
+
+    /**
+     * Subscribers of each event, by bit index. Copied on write, so that
+     * dispatch holds no lock and callbacks can unregister themselves.
+     */
+    private final List<CopyOnWriteArrayList<BluetoothCallback>> mCallbacks =
+            new ArrayList<CopyOnWriteArrayList<BluetoothCallback>>(EVENT_COUNT);
+
+    /** Time spent handling each action. Only used on the main thread. */
+    private final HashMap<String, DispatchStats> mDispatchStats =
+            new HashMap<String, DispatchStats>();
+
+    static class DispatchStats {
+        int mCount;
+        long mTotalNanos;
+        long mMaxNanos;
+        int mSlowCount;
+        /** Start of the last slow dispatch logged, or 0. */
+        long mLastSlowLogNanos;
+
+        void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) mMaxNanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return mCount + " dispatches, " + (mCount > 0 ? mTotalNanos / mCount / 1000 : 0)
+                    + "us average, " + mMaxNanos / 1000 + "us max, " + mSlowCount + " slow";
+        }
+    }
 
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
@@ -78,6 +121,9 @@ final class BluetoothEventManager {
         mProfileIntentFilter = new IntentFilter();
         mHandlerMap = new HashMap<String, Handler>();
         mContext = context;
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mCallbacks.add(new CopyOnWriteArrayList<BluetoothCallback>());
+        }
 
         // Bluetooth on/off broadcasts
         addHandler(BluetoothAdapter.ACTION_STATE_CHANGED, new AdapterStateChangedHandler());
@@ -106,17 +152,36 @@ final class BluetoothEventManager {
         mContext.registerReceiver(mBroadcastReceiver, mProfileIntentFilter);
     }
 
-    /** Register to start receiving callbacks for Bluetooth events. */
-    void registerCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.add(callback);
+    /**
+     * Register to start receiving callbacks for the given Bluetooth events.
+     * Other methods of the callback aren't called.
+     *
+     * @param events combination of {@code EVENT_*} flags.
+     */
+    void registerCallback(BluetoothCallback callback, int events) {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            if ((events & (1 << i)) != 0) {
+                mCallbacks.get(i).addIfAbsent(callback);
+            }
         }
     }
 
     /** Unregister to stop receiving callbacks for Bluetooth events. */
     void unregisterCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.remove(callback);
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mCallbacks.get(i).remove(callback);
+        }
+    }
+
+    /** Return subscribers of the given event, safe to iterate without a lock. */
+    private List<BluetoothCallback> getCallbacks(int event) {
+        return mCallbacks.get(Integer.numberOfTrailingZeros(event));
+    }
+
+    /** Log time spent handling each action so far. */
+    void logDispatchStats() {
+        for (Map.Entry<String, DispatchStats> entry : mDispatchStats.entrySet()) {
+            Log.d(TAG, entry.getKey() + ": " + entry.getValue());
         }
     }
 
@@ -145,7 +210,26 @@ final class BluetoothEventManager {
 
             Handler handler = mHandlerMap.get(action);
             if (handler != null) {
+                final long start = System.nanoTime();
                 handler.onReceive(context, intent, device);
+                final long elapsed = System.nanoTime() - start;
+
+                DispatchStats stats = mDispatchStats.get(action);
+                if (stats == null) {
+                    stats = new DispatchStats();
+                    mDispatchStats.put(action, stats);
+                }
+                stats.add(elapsed);
+                if (elapsed > SLOW_DISPATCH_NANOS) {
+                    stats.mSlowCount++;
+                    final long sinceLog = start - stats.mLastSlowLogNanos;
+                    if (Utils.D && (stats.mLastSlowLogNanos == 0
+                            || sinceLog > SLOW_DISPATCH_LOG_INTERVAL_NANOS)) {
+                        stats.mLastSlowLogNanos = start;
+                        Log.w(TAG, "Slow dispatch of " + action + ": " + elapsed / 1000 + "us, "
+                                + stats.mSlowCount + " slow so far");
+                    }
+                }
             }
         }
     };
@@ -158,10 +242,8 @@ final class BluetoothEventManager {
             // update local profiles and get paired devices
             mLocalAdapter.setBluetoothStateInt(state);
             // send callback to update UI and possibly start scanning
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onBluetoothStateChanged(state);
-                }
+            for (BluetoothCallback callback : getCallbacks(EVENT_BLUETOOTH_STATE_CHANGED)) {
+                callback.onBluetoothStateChanged(state);
             }
         }
     }
@@ -174,13 +256,14 @@ final class BluetoothEventManager {
         }
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onScanningStateChanged(mStarted);
-                }
+            for (BluetoothCallback callback : getCallbacks(EVENT_SCANNING_STATE_CHANGED)) {
+                callback.onScanningStateChanged(mStarted);
             }
             mDeviceManager.onScanningStateChanged(mStarted);
             LocalBluetoothPreferences.persistDiscoveringTimestamp(context);
+            if (Utils.V && !mStarted) {
+                logDispatchStats();
+            }
         }
     }
 
@@ -200,18 +283,22 @@ final class BluetoothEventManager {
                 // callback to UI to create Preference for new device
                 dispatchDeviceAdded(cachedDevice);
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
+            // one callback for the whole result, devices repeat these often
+            cachedDevice.beginUpdate();
+            try {
+                cachedDevice.setRssi(rssi);
+                cachedDevice.setBtClass(btClass);
+                cachedDevice.setName(name);
+                cachedDevice.setVisible(true);
+            } finally {
+                cachedDevice.endUpdate();
+            }
         }
     }
 
     private void dispatchDeviceAdded(CachedBluetoothDevice cachedDevice) {
-        synchronized (mCallbacks) {
-            for (BluetoothCallback callback : mCallbacks) {
-                callback.onDeviceAdded(cachedDevice);
-            }
+        for (BluetoothCallback callback : getCallbacks(EVENT_DEVICE_ADDED)) {
+            callback.onDeviceAdded(cachedDevice);
         }
     }
 
@@ -224,10 +311,8 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
-                synchronized (mCallbacks) {
-                    for (BluetoothCallback callback : mCallbacks) {
-                        callback.onDeviceDeleted(cachedDevice);
-                    }
+                for (BluetoothCallback callback : getCallbacks(EVENT_DEVICE_DELETED)) {
+                    callback.onDeviceDeleted(cachedDevice);
                 }
             }
         }
@@ -266,10 +351,8 @@ final class BluetoothEventManager {
                 }
             }
 
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onDeviceBondStateChanged(cachedDevice, bondState);
-                }
+            for (BluetoothCallback callback : getCallbacks(EVENT_DEVICE_BOND_STATE_CHANGED)) {
+                callback.onDeviceBondStateChanged(cachedDevice, bondState);
             }
             cachedDevice.onBondingStateChanged(bondState);
 
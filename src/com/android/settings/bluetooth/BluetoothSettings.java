@@ -343,6 +343,11 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment {
         getActivity().invalidateOptionsMenu();
     }
 
+    @Override
+    int getCallbackEvents() {
+        return super.getCallbackEvents() | BluetoothEventManager.EVENT_DEVICE_BOND_STATE_CHANGED;
+    }
+
     public void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice, int bondState) {
         setDeviceListGroup(getPreferenceScreen());
         removeAllDevices();
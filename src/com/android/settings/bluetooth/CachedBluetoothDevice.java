@@ -46,6 +46,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     private final LocalBluetoothAdapter mLocalAdapter;
     private final LocalBluetoothProfileManager mProfileManager;
     private final BluetoothDevice mDevice;
+    private final ProfileConnector mConnector;
     private String mName;
     private short mRssi;
     private BluetoothClass mBtClass;
@@ -67,6 +68,10 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
 
+    /** Nesting of {@link #beginUpdate()}, and whether attributes changed meanwhile. */
+    private int mUpdateDepth;
+    private boolean mAttributesChangedInUpdate;
+
     // Following constants indicate the user's choices of Phone book access settings
     // User hasn't made any choice or settings app has wiped out the memory
     final static int PHONEBOOK_ACCESS_UNKNOWN = 0;
@@ -120,6 +125,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
 
         mProfileConnectionState.put(profile, newProfileState);
+        mConnector.onProfileStateChanged(profile, newProfileState);
         if (newProfileState == BluetoothProfile.STATE_CONNECTED) {
             if (!mProfiles.contains(profile)) {
                 mRemovedProfiles.remove(profile);
@@ -148,6 +154,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         mLocalAdapter = adapter;
         mProfileManager = profileManager;
         mDevice = device;
+        mConnector = new ProfileConnector(device);
         mProfileConnectionState = new HashMap<LocalBluetoothProfile, Integer>();
         fillData();
     }
@@ -195,18 +202,19 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         // Reset the only-show-one-error-dialog tracking variable
         mIsConnectingErrorPossible = true;
 
-        int preferredProfiles = 0;
+        List<LocalBluetoothProfile> preferredProfiles = new ArrayList<LocalBluetoothProfile>();
         for (LocalBluetoothProfile profile : mProfiles) {
             if (connectAllProfiles ? profile.isConnectable() : profile.isAutoConnectable()) {
                 if (profile.isPreferred(mDevice)) {
-                    ++preferredProfiles;
-                    connectInt(profile);
+                    preferredProfiles.add(profile);
                 }
             }
         }
-        if (DEBUG) Log.d(TAG, "Preferred profiles = " + preferredProfiles);
+        if (DEBUG) Log.d(TAG, "Preferred profiles = " + preferredProfiles.size());
 
-        if (preferredProfiles == 0) {
+        if (!preferredProfiles.isEmpty()) {
+            connectInt(preferredProfiles);
+        } else {
             connectAutoConnectableProfiles();
         }
     }
@@ -218,12 +226,14 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         // Reset the only-show-one-error-dialog tracking variable
         mIsConnectingErrorPossible = true;
 
+        List<LocalBluetoothProfile> profiles = new ArrayList<LocalBluetoothProfile>();
         for (LocalBluetoothProfile profile : mProfiles) {
             if (profile.isAutoConnectable()) {
                 profile.setPreferred(mDevice, true);
-                connectInt(profile);
+                profiles.add(profile);
             }
         }
+        connectInt(profiles);
     }
 
     /**
@@ -235,20 +245,14 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         mConnectAttempted = SystemClock.elapsedRealtime();
         // Reset the only-show-one-error-dialog tracking variable
         mIsConnectingErrorPossible = true;
-        connectInt(profile);
+        connectInt(Collections.singletonList(profile));
     }
 
-    private void connectInt(LocalBluetoothProfile profile) {
+    private void connectInt(List<LocalBluetoothProfile> profiles) {
         if (!ensurePaired()) {
             return;
         }
-        if (profile.connect(mDevice)) {
-            if (Utils.D) {
-                Log.d(TAG, "Command sent successfully:CONNECT " + describe(profile));
-            }
-            return;
-        }
-        Log.i(TAG, "Failed to connect " + profile.toString() + " to " + mName);
+        mConnector.connect(profiles);
     }
 
     private boolean ensurePaired() {
@@ -382,6 +386,10 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         return mDevice.getBondState();
     }
 
+    short getRssi() {
+        return mRssi;
+    }
+
     void setRssi(short rssi) {
         if (mRssi != rssi) {
             mRssi = rssi;
@@ -544,7 +552,28 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /**
+     * Start changing several attributes at once, such as from a single
+     * discovery result. Callbacks are held back until the matching
+     * {@link #endUpdate()}, and called once if anything changed. Updates can
+     * be nested. Call on the main thread.
+     */
+    void beginUpdate() {
+        mUpdateDepth++;
+    }
+
+    void endUpdate() {
+        if (--mUpdateDepth == 0 && mAttributesChangedInUpdate) {
+            mAttributesChangedInUpdate = false;
+            dispatchAttributesChanged();
+        }
+    }
+
     private void dispatchAttributesChanged() {
+        if (mUpdateDepth > 0) {
+            mAttributesChangedInUpdate = true;
+            return;
+        }
         synchronized (mCallbacks) {
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
@@ -23,6 +23,7 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
@@ -32,8 +33,15 @@ final class CachedBluetoothDeviceManager {
     private static final boolean DEBUG = Utils.D;
 
     private Context mContext;
+    /** Devices in the order they were found, for display. Guarded by this. */
     private final List<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
+    /**
+     * Same devices by address, so lookups don't scan the list or take the
+     * lock while a crowded discovery delivers events.
+     */
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mCachedDevicesByAddress =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
@@ -66,26 +74,27 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+        return mCachedDevicesByAddress.get(device.getAddress());
     }
 
     /**
      * Create and return a new {@link CachedBluetoothDevice}. This assumes
-     * that {@link #findDevice} has already been called and returned null.
+     * that {@link #findDevice} has already been called and returned null,
+     * but returns the existing object if another thread added it since.
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
-    CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
+    synchronized CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
+        CachedBluetoothDevice cachedDevice = findDevice(device);
+        if (cachedDevice != null) {
+            return cachedDevice;
+        }
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
         mCachedDevices.add(newDevice);
+        mCachedDevicesByAddress.put(device.getAddress(), newDevice);
         return newDevice;
     }
 
@@ -120,14 +129,14 @@ final class CachedBluetoothDeviceManager {
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    public void onBtClassChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
@@ -93,13 +93,24 @@ public abstract class DeviceListPreferenceFragment extends
     /** Add preferences from the subclass. */
     abstract void addPreferencesForActivity();
 
+    /**
+     * Return the {@link BluetoothEventManager} events this fragment handles.
+     * Overridden by subclasses that handle more of them.
+     */
+    int getCallbackEvents() {
+        return BluetoothEventManager.EVENT_BLUETOOTH_STATE_CHANGED
+                | BluetoothEventManager.EVENT_SCANNING_STATE_CHANGED
+                | BluetoothEventManager.EVENT_DEVICE_ADDED
+                | BluetoothEventManager.EVENT_DEVICE_DELETED;
+    }
+
     @Override
     public void onResume() {
         super.onResume();
         if (mLocalManager == null) return;
 
         mLocalManager.setForegroundActivity(getActivity());
-        mLocalManager.getEventManager().registerCallback(this);
+        mLocalManager.getEventManager().registerCallback(this, getCallbackEvents());
 
         updateProgressUi(mLocalAdapter.isDiscovering());
     }
@@ -78,6 +78,11 @@ public final class DevicePickerFragment extends DeviceListPreferenceFragment {
         }
     }
 
+    @Override
+    int getCallbackEvents() {
+        return super.getCallbackEvents() | BluetoothEventManager.EVENT_DEVICE_BOND_STATE_CHANGED;
+    }
+
     public void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice,
             int bondState) {
         if (bondState == BluetoothDevice.BOND_BONDED) {
@@ -36,6 +36,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -53,37 +54,11 @@ public final class DockService extends Service implements ServiceListener {
 
     static final boolean DEBUG = false;
 
-    // Time allowed for the device to be undocked and redocked without severing
-    // the bluetooth connection
-    private static final long UNDOCKED_GRACE_PERIOD = 1000;
-
-    // Time allowed for the device to be undocked and redocked without turning
-    // off Bluetooth
-    private static final long DISABLE_BT_GRACE_PERIOD = 2000;
-
-    // Msg for user wanting the UI to setup the dock
-    private static final int MSG_TYPE_SHOW_UI = 111;
-
-    // Msg for device docked event
-    private static final int MSG_TYPE_DOCKED = 222;
-
-    // Msg for device undocked event
-    private static final int MSG_TYPE_UNDOCKED_TEMPORARY = 333;
-
-    // Msg for undocked command to be process after UNDOCKED_GRACE_PERIOD millis
-    // since MSG_TYPE_UNDOCKED_TEMPORARY
-    private static final int MSG_TYPE_UNDOCKED_PERMANENT = 444;
-
-    // Msg for disabling bt after DISABLE_BT_GRACE_PERIOD millis since
-    // MSG_TYPE_UNDOCKED_PERMANENT
-    private static final int MSG_TYPE_DISABLE_BT = 555;
+    // Msg for processing events of the state machine that are due
+    private static final int MSG_PROCESS = 111;
 
     private static final String SHARED_PREFERENCES_NAME = "dock_settings";
 
-    private static final String KEY_DISABLE_BT_WHEN_UNDOCKED = "disable_bt_when_undock";
-
-    private static final String KEY_DISABLE_BT = "disable_bt";
-
     private static final String KEY_CONNECT_RETRY_COUNT = "connect_retry_count";
 
     /*
@@ -92,32 +67,23 @@ public final class DockService extends Service implements ServiceListener {
      */
     private static final int MAX_CONNECT_RETRY = 6;
 
-    private static final int INVALID_STARTID = -100;
-
     // Created in OnCreate()
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
-    private Runnable mRunnable;
+    private Handler mProfileHandler;
     private LocalBluetoothAdapter mLocalAdapter;
     private CachedBluetoothDeviceManager mDeviceManager;
     private LocalBluetoothProfileManager mProfileManager;
+    private DockStateMachine mStateMachine;
 
-    // Normally set after getting a docked event and unset when the connection
-    // is severed. One exception is that mDevice could be null if the service
-    // was started after the docked event.
-    private BluetoothDevice mDevice;
+    /** Token of connect work queued on mProfileHandler, dropped when disconnecting. */
+    private final Object mConnectToken = new Object();
 
-    // Created and used for the duration of the dialog
+    // Created and used for the duration of the dialog, on the service thread
     private AlertDialog mDialog;
+    private BluetoothDevice mDialogDevice;
     private LocalBluetoothProfile[] mProfiles;
     private boolean[] mCheckedItems;
-    private int mStartIdAssociatedWithDialog;
-
-    // Set while BT is being enabled.
-    private BluetoothDevice mPendingDevice;
-    private int mPendingStartId;
-    private int mPendingTurnOnStartId = INVALID_STARTID;
-    private int mPendingTurnOffStartId = INVALID_STARTID;
 
     @Override
     public void onCreate() {
@@ -142,21 +108,44 @@ public final class DockService extends Service implements ServiceListener {
 
         mServiceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(mServiceLooper);
+
+        // Profile calls block on other processes, so keep them off the
+        // thread handling dock events
+        HandlerThread profileThread = new HandlerThread("DockService profiles");
+        profileThread.start();
+        mProfileHandler = new Handler(profileThread.getLooper());
+
+        mStateMachine = new DockStateMachine(new ServiceEnvironment());
+
+        // Register before any event, so readiness of the profiles isn't missed
+        mProfileManager.addServiceListener(this);
     }
 
     @Override
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "onDestroy");
-        mRunnable = null;
-        if (mDialog != null) {
-            mDialog.dismiss();
-            mDialog = null;
-        }
         if (mProfileManager != null) {
             mProfileManager.removeServiceListener(this);
         }
-        if (mServiceLooper != null) {
-            mServiceLooper.quit();
+        if (mServiceHandler != null) {
+            // The dialog belongs to the service thread
+            mServiceHandler.post(new Runnable() {
+                public void run() {
+                    if (mDialog != null) {
+                        mDialog.dismiss();
+                        mDialog = null;
+                    }
+                    Looper.myLooper().quit();
+                }
+            });
+        }
+        if (mProfileHandler != null) {
+            // Let profile work already queued finish
+            mProfileHandler.post(new Runnable() {
+                public void run() {
+                    Looper.myLooper().quit();
+                }
+            });
         }
 
         mLocalAdapter = null;
@@ -164,6 +153,8 @@ public final class DockService extends Service implements ServiceListener {
         mProfileManager = null;
         mServiceLooper = null;
         mServiceHandler = null;
+        mProfileHandler = null;
+        mStateMachine = null;
     }
 
     @Override
@@ -180,18 +171,23 @@ public final class DockService extends Service implements ServiceListener {
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "onStartCommand startId: " + startId + " flags: " + flags);
 
-        if (intent == null) {
-            // Nothing to process, stop.
-            if (DEBUG) Log.d(TAG, "START_NOT_STICKY - intent is null.");
-
+        if (mStateMachine == null) {
             // NOTE: We MUST not call stopSelf() directly, since we need to
             // make sure the wake lock acquired by the Receiver is released.
             DockEventReceiver.finishStartingService(this, startId);
             return START_NOT_STICKY;
         }
 
+        if (intent == null) {
+            // Nothing to process, stop.
+            if (DEBUG) Log.d(TAG, "START_NOT_STICKY - intent is null.");
+            mStateMachine.post(DockStateMachine.EVENT_IGNORED, null, 0, startId);
+            return START_NOT_STICKY;
+        }
+
         if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
-            handleBtStateChange(intent, startId);
+            int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            mStateMachine.post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, btState, startId);
             return START_NOT_STICKY;
         }
 
@@ -200,42 +196,33 @@ public final class DockService extends Service implements ServiceListener {
          * and that the intent is for a disconnect
          */
         final SharedPreferences prefs = getPrefs();
-        if (BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())) {
-            BluetoothDevice disconnectedDevice = intent
-                    .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            int retryCount = prefs.getInt(KEY_CONNECT_RETRY_COUNT, 0);
-            if (retryCount < MAX_CONNECT_RETRY) {
-                prefs.edit().putInt(KEY_CONNECT_RETRY_COUNT, retryCount + 1).apply();
-                handleUnexpectedDisconnect(disconnectedDevice, mProfileManager.getHeadsetProfile(), startId);
-            }
-            return START_NOT_STICKY;
-        } else if (BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())) {
+        if (BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())
+                || BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())) {
             BluetoothDevice disconnectedDevice = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
             int retryCount = prefs.getInt(KEY_CONNECT_RETRY_COUNT, 0);
-            if (retryCount < MAX_CONNECT_RETRY) {
+            if (disconnectedDevice != null && retryCount < MAX_CONNECT_RETRY) {
                 prefs.edit().putInt(KEY_CONNECT_RETRY_COUNT, retryCount + 1).apply();
-                handleUnexpectedDisconnect(disconnectedDevice, mProfileManager.getA2dpProfile(), startId);
+                int profile = BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(
+                        intent.getAction()) ? DockStateMachine.PROFILE_HEADSET
+                        : DockStateMachine.PROFILE_A2DP;
+                mStateMachine.post(DockStateMachine.EVENT_PROFILE_DISCONNECTED,
+                        disconnectedDevice.getAddress(), profile, startId);
+            } else {
+                mStateMachine.post(DockStateMachine.EVENT_IGNORED, null, 0, startId);
             }
             return START_NOT_STICKY;
         }
 
-        Message msg = parseIntent(intent);
-        if (msg == null) {
-            // Bad intent
-            if (DEBUG) Log.d(TAG, "START_NOT_STICKY - Bad intent.");
-            DockEventReceiver.finishStartingService(this, startId);
-            return START_NOT_STICKY;
-        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, -1234);
+        int event = parseDockEvent(intent, device, state);
 
-        if (msg.what == MSG_TYPE_DOCKED) {
+        if (event == DockStateMachine.EVENT_DOCKED) {
             prefs.edit().remove(KEY_CONNECT_RETRY_COUNT).apply();
         }
 
-        msg.arg2 = startId;
-        processMessage(msg);
-
+        mStateMachine.post(event, device != null ? device.getAddress() : null, state, startId);
         return START_NOT_STICKY;
     }
 
@@ -246,157 +233,206 @@ public final class DockService extends Service implements ServiceListener {
 
         @Override
         public void handleMessage(Message msg) {
-            processMessage(msg);
+            if (msg.what == MSG_PROCESS && mStateMachine != null) {
+                mStateMachine.process();
+            }
         }
     }
 
-    // This method gets messages from both onStartCommand and mServiceHandler/mServiceLooper
-    private synchronized void processMessage(Message msg) {
-        int msgType = msg.what;
-        final int state = msg.arg1;
-        final int startId = msg.arg2;
-        BluetoothDevice device = null;
-        if (msg.obj != null) {
-            device = (BluetoothDevice) msg.obj;
+    /**
+     * Return the state machine event for a dock intent, or
+     * {@link DockStateMachine#EVENT_IGNORED} if it's bad.
+     */
+    private static int parseDockEvent(Intent intent, BluetoothDevice device, int state) {
+        if (DEBUG) {
+            Log.d(TAG, "Action: " + intent.getAction() + " State:" + state
+                    + " Device: " + (device == null ? "null" : device.getAliasName()));
         }
 
-        if(DEBUG) Log.d(TAG, "processMessage: " + msgType + " state: " + state + " device = "
-                + (device == null ? "null" : device.toString()));
+        if (device == null) {
+            Log.w(TAG, "device is null");
+            return DockStateMachine.EVENT_IGNORED;
+        }
 
-        boolean deferFinishCall = false;
+        switch (state) {
+            case Intent.EXTRA_DOCK_STATE_UNDOCKED:
+                return DockStateMachine.EVENT_UNDOCKED;
+            case Intent.EXTRA_DOCK_STATE_DESK:
+            case Intent.EXTRA_DOCK_STATE_LE_DESK:
+            case Intent.EXTRA_DOCK_STATE_HE_DESK:
+            case Intent.EXTRA_DOCK_STATE_CAR:
+                if (DockEventReceiver.ACTION_DOCK_SHOW_UI.equals(intent.getAction())) {
+                    return DockStateMachine.EVENT_SHOW_UI;
+                } else {
+                    return DockStateMachine.EVENT_DOCKED;
+                }
+            default:
+                if (DEBUG) Log.d(TAG, "START_NOT_STICKY - Bad intent.");
+                return DockStateMachine.EVENT_IGNORED;
+        }
+    }
 
-        switch (msgType) {
-            case MSG_TYPE_SHOW_UI:
-                createDialog(device, state, startId);
-                break;
+    private void postEvent(int type, int arg) {
+        final DockStateMachine stateMachine = mStateMachine;
+        if (stateMachine != null) {
+            stateMachine.post(type, null, arg, DockStateMachine.NO_START_ID);
+        }
+    }
 
-            case MSG_TYPE_DOCKED:
-                deferFinishCall = msgTypeDocked(device, state, startId);
-                break;
+    /**
+     * Everything {@link DockStateMachine} does, called on the service thread.
+     * Profile work is queued to the profile thread.
+     */
+    private final class ServiceEnvironment implements DockStateMachine.Environment {
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
 
-            case MSG_TYPE_UNDOCKED_PERMANENT:
-                deferFinishCall = msgTypeUndockedPermanent(device, startId);
-                break;
+        public void scheduleProcessing(long when) {
+            final Handler handler = mServiceHandler;
+            if (handler != null) {
+                handler.sendEmptyMessageAtTime(MSG_PROCESS, when);
+            }
+        }
 
-            case MSG_TYPE_UNDOCKED_TEMPORARY:
-                msgTypeUndockedTemporary(device, state, startId);
-                break;
+        public int getBluetoothState() {
+            int btState = mLocalAdapter.getBluetoothState();
+            if (DEBUG) Log.d(TAG, "BtState = " + btState);
+            return btState;
+        }
 
-            case MSG_TYPE_DISABLE_BT:
-                deferFinishCall = msgTypeDisableBluetooth(startId);
-                break;
+        public boolean enableBluetooth() {
+            return mLocalAdapter.enable();
         }
 
-        if (mDialog == null && mPendingDevice == null && msgType != MSG_TYPE_UNDOCKED_TEMPORARY
-                && !deferFinishCall) {
-            // NOTE: We MUST not call stopSelf() directly, since we need to
-            // make sure the wake lock acquired by the Receiver is released.
-            DockEventReceiver.finishStartingService(this, startId);
+        public boolean disableBluetooth() {
+            if (DEBUG) Log.d(TAG, "BT DISABLE");
+            return mLocalAdapter.disable();
         }
-    }
 
-    private boolean msgTypeDisableBluetooth(int startId) {
-        if (DEBUG) {
-            Log.d(TAG, "BT DISABLE");
+        public boolean isProfileManagerReady() {
+            return mProfileManager.isManagerReady();
         }
-        final SharedPreferences prefs = getPrefs();
-        if (mLocalAdapter.disable()) {
-            prefs.edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
-            return false;
-        } else {
-            // disable() returned an error. Persist a flag to disable BT later
-            prefs.edit().putBoolean(KEY_DISABLE_BT, true).apply();
-            mPendingTurnOffStartId = startId;
-            if(DEBUG) {
-                Log.d(TAG, "disable failed. try again later " + startId);
+
+        public boolean hasOtherConnectedDevices(String dockAddress) {
+            return DockService.this.hasOtherConnectedDevices(dockAddress);
+        }
+
+        public String getDockedAddress() {
+            // registerReceiver can't be called from a BroadcastReceiver
+            Intent intent = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
+            if (intent == null || intent.getIntExtra(Intent.EXTRA_DOCK_STATE,
+                    Intent.EXTRA_DOCK_STATE_UNDOCKED) == Intent.EXTRA_DOCK_STATE_UNDOCKED) {
+                return null;
             }
-            return true;
+            BluetoothDevice dockedDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            return dockedDevice != null ? dockedDevice.getAddress() : null;
         }
-    }
 
-    private void msgTypeUndockedTemporary(BluetoothDevice device, int state,
-            int startId) {
-        // Undocked event received. Queue a delayed msg to sever connection
-        Message newMsg = mServiceHandler.obtainMessage(MSG_TYPE_UNDOCKED_PERMANENT, state,
-                startId, device);
-        mServiceHandler.sendMessageDelayed(newMsg, UNDOCKED_GRACE_PERIOD);
-    }
+        public boolean getFlag(String key) {
+            return getPrefs().getBoolean(key, false);
+        }
 
-    private boolean msgTypeUndockedPermanent(BluetoothDevice device, int startId) {
-        // Grace period passed. Disconnect.
-        handleUndocked(device);
-        final SharedPreferences prefs = getPrefs();
+        public void setFlag(String key, boolean value) {
+            if (value) {
+                getPrefs().edit().putBoolean(key, true).apply();
+            } else {
+                getPrefs().edit().remove(key).apply();
+            }
+        }
 
-        if (DEBUG) {
-            Log.d(TAG, "DISABLE_BT_WHEN_UNDOCKED = "
-                    + prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false));
+        public boolean getAutoConnectSetting(String address) {
+            return LocalBluetoothPreferences.getDockAutoConnectSetting(DockService.this, address);
         }
 
-        if (prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false)) {
-            if (hasOtherConnectedDevices(device)) {
-                // Don't disable BT if something is connected
-                prefs.edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
-            } else {
-                // BT was disabled when we first docked
-                if (DEBUG) {
-                    Log.d(TAG, "QUEUED BT DISABLE");
+        public void loadSavedSettings(String address, int dockState) {
+            initBtSettings(mLocalAdapter.getRemoteDevice(address), dockState, false);
+        }
+
+        public boolean hasEnabledProfiles() {
+            if (mCheckedItems != null) {
+                for (boolean enable : mCheckedItems) {
+                    if (enable) {
+                        return true;
+                    }
                 }
-                // Queue a delayed msg to disable BT
-                Message newMsg = mServiceHandler.obtainMessage(
-                        MSG_TYPE_DISABLE_BT, 0, startId, null);
-                mServiceHandler.sendMessageDelayed(newMsg,
-                        DISABLE_BT_GRACE_PERIOD);
-                return true;
             }
+            return false;
         }
-        return false;
-    }
 
-    private boolean msgTypeDocked(BluetoothDevice device, final int state,
-            final int startId) {
-        if (DEBUG) {
-            // TODO figure out why hasMsg always returns false if device
-            // is supplied
-            Log.d(TAG, "1 Has undock perm msg = "
-                    + mServiceHandler.hasMessages(MSG_TYPE_UNDOCKED_PERMANENT, mDevice));
-            Log.d(TAG, "2 Has undock perm msg = "
-                    + mServiceHandler.hasMessages(MSG_TYPE_UNDOCKED_PERMANENT, device));
-        }
-
-        mServiceHandler.removeMessages(MSG_TYPE_UNDOCKED_PERMANENT);
-        mServiceHandler.removeMessages(MSG_TYPE_DISABLE_BT);
-        getPrefs().edit().remove(KEY_DISABLE_BT).apply();
-
-        if (device != null && !device.equals(mDevice)) {
-            if (mDevice != null) {
-                // Not expected. Cleanup/undock existing
-                handleUndocked(mDevice);
-            }
+        public void showSettingsDialog(String address, int dockState, int dialogId) {
+            createDialog(mLocalAdapter.getRemoteDevice(address), dockState, dialogId);
+        }
 
-            mDevice = device;
+        public void dismissSettingsDialog() {
+            if (mDialog != null) {
+                mDialog.dismiss();
+                mDialog = null;
+            }
+        }
 
-            // Register first in case LocalBluetoothProfileManager
-            // becomes ready after isManagerReady is called and it
-            // would be too late to register a service listener.
-            mProfileManager.addServiceListener(this);
-            if (mProfileManager.isManagerReady()) {
-                handleDocked(device, state, startId);
-                // Not needed after all
-                mProfileManager.removeServiceListener(this);
-            } else {
-                final BluetoothDevice d = device;
-                mRunnable = new Runnable() {
-                    public void run() {
-                        handleDocked(d, state, startId);  // FIXME: WTF runnable here?
-                    }
-                };
-                return true;
+        public void applySettings(String address) {
+            if (mProfiles == null || mCheckedItems == null) {
+                return;
             }
+            final BluetoothDevice device = mLocalAdapter.getRemoteDevice(address);
+            final LocalBluetoothProfile[] profiles = mProfiles;
+            final boolean[] checkedItems = mCheckedItems.clone();
+            postConnectWork(new Runnable() {
+                public void run() {
+                    applyBtSettings(device, profiles, checkedItems);
+                }
+            });
+        }
+
+        public void connectIfAutoConnect(String address) {
+            final BluetoothDevice device = mLocalAdapter.getRemoteDevice(address);
+            postConnectWork(new Runnable() {
+                public void run() {
+                    connectIfEnabled(device);
+                }
+            });
+        }
+
+        public void connectProfile(String address, int profile) {
+            if (DEBUG) Log.d(TAG, "handling failed connect for " + address);
+            final BluetoothDevice device = mLocalAdapter.getRemoteDevice(address);
+            final LocalBluetoothProfile localProfile = profile == DockStateMachine.PROFILE_HEADSET
+                    ? mProfileManager.getHeadsetProfile() : mProfileManager.getA2dpProfile();
+            postConnectWork(new Runnable() {
+                public void run() {
+                    getCachedBluetoothDevice(device).connectProfile(localProfile);
+                }
+            });
+        }
+
+        public void disconnect(String address) {
+            final BluetoothDevice device = mLocalAdapter.getRemoteDevice(address);
+            // Connecting is superseded
+            mProfileHandler.removeCallbacksAndMessages(mConnectToken);
+            mProfileHandler.post(new Runnable() {
+                public void run() {
+                    getCachedBluetoothDevice(device).disconnect();
+                }
+            });
+        }
+
+        public void finishStartId(final int startId) {
+            mProfileHandler.post(new Runnable() {
+                public void run() {
+                    // NOTE: We MUST not call stopSelf() directly, since we need to
+                    // make sure the wake lock acquired by the Receiver is released.
+                    DockEventReceiver.finishStartingService(DockService.this, startId);
+                }
+            });
+        }
+
+        private void postConnectWork(Runnable r) {
+            mProfileHandler.postAtTime(r, mConnectToken, SystemClock.uptimeMillis());
         }
-        return false;
     }
 
-    synchronized boolean hasOtherConnectedDevices(BluetoothDevice dock) {
+    boolean hasOtherConnectedDevices(String dockAddress) {
         Collection<CachedBluetoothDevice> cachedDevices = mDeviceManager.getCachedDevicesCopy();
         Set<BluetoothDevice> btDevices = mLocalAdapter.getBondedDevices();
         if (btDevices == null || cachedDevices == null || btDevices.isEmpty()) {
@@ -409,8 +445,8 @@ public final class DockService extends Service implements ServiceListener {
 
         for (CachedBluetoothDevice deviceUI : cachedDevices) {
             BluetoothDevice btDevice = deviceUI.getDevice();
-            if (!btDevice.equals(dock) && btDevices.contains(btDevice) && deviceUI
-                    .isConnected()) {
+            if (!btDevice.getAddress().equals(dockAddress) && btDevices.contains(btDevice)
+                    && deviceUI.isConnected()) {
                 if(DEBUG) Log.d(TAG, "connected deviceUI = " + deviceUI.getName());
                 return true;
             }
@@ -418,50 +454,13 @@ public final class DockService extends Service implements ServiceListener {
         return false;
     }
 
-    private Message parseIntent(Intent intent) {
-        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, -1234);
-
-        if (DEBUG) {
-            Log.d(TAG, "Action: " + intent.getAction() + " State:" + state
-                    + " Device: " + (device == null ? "null" : device.getAliasName()));
-        }
-
-        if (device == null) {
-            Log.w(TAG, "device is null");
-            return null;
-        }
-
-        int msgType;
-        switch (state) {
-            case Intent.EXTRA_DOCK_STATE_UNDOCKED:
-                msgType = MSG_TYPE_UNDOCKED_TEMPORARY;
-                break;
-            case Intent.EXTRA_DOCK_STATE_DESK:
-            case Intent.EXTRA_DOCK_STATE_LE_DESK:
-            case Intent.EXTRA_DOCK_STATE_HE_DESK:
-            case Intent.EXTRA_DOCK_STATE_CAR:
-                if (DockEventReceiver.ACTION_DOCK_SHOW_UI.equals(intent.getAction())) {
-                    msgType = MSG_TYPE_SHOW_UI;
-                } else {
-                    msgType = MSG_TYPE_DOCKED;
-                }
-                break;
-            default:
-                return null;
-        }
-
-        return mServiceHandler.obtainMessage(msgType, state, 0, device);
-    }
-
-    private void createDialog(BluetoothDevice device,
-            int state, int startId) {
+    private void createDialog(BluetoothDevice device, int state, final int dialogId) {
         if (mDialog != null) {
             // Shouldn't normally happen
             mDialog.dismiss();
             mDialog = null;
         }
-        mDevice = device;
+        mDialogDevice = device;
         switch (state) {
             case Intent.EXTRA_DOCK_STATE_CAR:
             case Intent.EXTRA_DOCK_STATE_DESK:
@@ -469,6 +468,7 @@ public final class DockService extends Service implements ServiceListener {
             case Intent.EXTRA_DOCK_STATE_HE_DESK:
                 break;
             default:
+                postEvent(DockStateMachine.EVENT_DIALOG_DISMISSED, dialogId);
                 return;
         }
 
@@ -505,12 +505,34 @@ public final class DockService extends Service implements ServiceListener {
         }
 
         // Ok Button
-        ab.setPositiveButton(getString(android.R.string.ok), mClickListener);
+        ab.setPositiveButton(getString(android.R.string.ok),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == DialogInterface.BUTTON_POSITIVE
+                                && mDialogDevice != null) {
+                            if (!LocalBluetoothPreferences
+                                    .hasDockAutoConnectSetting(
+                                            DockService.this,
+                                            mDialogDevice.getAddress())) {
+                                LocalBluetoothPreferences
+                                        .saveDockAutoConnectSetting(
+                                                DockService.this,
+                                                mDialogDevice.getAddress(), true);
+                            }
+
+                            postEvent(DockStateMachine.EVENT_SETTINGS_CHOSEN, dialogId);
+                        }
+                    }
+                });
 
-        mStartIdAssociatedWithDialog = startId;
         mDialog = ab.create();
         mDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
-        mDialog.setOnDismissListener(mDismissListener);
+        mDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            public void onDismiss(DialogInterface dialog) {
+                postEvent(DockStateMachine.EVENT_DIALOG_DISMISSED, dialogId);
+                stopForeground(true);
+            }
+        });
         mDialog.show();
     }
 
@@ -533,45 +555,9 @@ public final class DockService extends Service implements ServiceListener {
                     if (DEBUG) {
                         Log.d(TAG, "onCheckedChanged: Remember Settings = " + isChecked);
                     }
-                    if (mDevice != null) {
+                    if (mDialogDevice != null) {
                         LocalBluetoothPreferences.saveDockAutoConnectSetting(
-                                DockService.this, mDevice.getAddress(), isChecked);
-                    }
-                }
-            };
-
-
-    // Called when the dialog is dismissed
-    private final DialogInterface.OnDismissListener mDismissListener =
-            new DialogInterface.OnDismissListener() {
-                public void onDismiss(DialogInterface dialog) {
-                    // NOTE: We MUST not call stopSelf() directly, since we need to
-                    // make sure the wake lock acquired by the Receiver is released.
-                    if (mPendingDevice == null) {
-                        DockEventReceiver.finishStartingService(
-                                DockService.this, mStartIdAssociatedWithDialog);
-                    }
-                    stopForeground(true);
-                }
-            };
-
-    // Called when clicked on the OK button
-    private final DialogInterface.OnClickListener mClickListener =
-            new DialogInterface.OnClickListener() {
-                public void onClick(DialogInterface dialog, int which) {
-                    if (which == DialogInterface.BUTTON_POSITIVE
-                            && mDevice != null) {
-                        if (!LocalBluetoothPreferences
-                                .hasDockAutoConnectSetting(
-                                        DockService.this,
-                                        mDevice.getAddress())) {
-                            LocalBluetoothPreferences
-                                    .saveDockAutoConnectSetting(
-                                            DockService.this,
-                                            mDevice.getAddress(), true);
-                        }
-
-                        applyBtSettings(mDevice, mStartIdAssociatedWithDialog);
+                                DockService.this, mDialogDevice.getAddress(), isChecked);
                     }
                 }
             };
@@ -630,118 +616,8 @@ public final class DockService extends Service implements ServiceListener {
         return items;
     }
 
-    // TODO: move to background thread to fix strict mode warnings
-    private void handleBtStateChange(Intent intent, int startId) {
-        int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
-        synchronized (this) {
-            if(DEBUG) Log.d(TAG, "BtState = " + btState + " mPendingDevice = " + mPendingDevice);
-            if (btState == BluetoothAdapter.STATE_ON) {
-                handleBluetoothStateOn(startId);
-            } else if (btState == BluetoothAdapter.STATE_TURNING_OFF) {
-                // Remove the flag to disable BT if someone is turning off bt.
-                // The rational is that:
-                // a) if BT is off at undock time, no work needs to be done
-                // b) if BT is on at undock time, the user wants it on.
-                getPrefs().edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
-                DockEventReceiver.finishStartingService(this, startId);
-            } else if (btState == BluetoothAdapter.STATE_OFF) {
-                // Bluetooth was turning off as we were trying to turn it on.
-                // Let's try again
-                if(DEBUG) Log.d(TAG, "Bluetooth = OFF mPendingDevice = " + mPendingDevice);
-
-                if (mPendingTurnOffStartId != INVALID_STARTID) {
-                    DockEventReceiver.finishStartingService(this, mPendingTurnOffStartId);
-                    getPrefs().edit().remove(KEY_DISABLE_BT).apply();
-                    mPendingTurnOffStartId = INVALID_STARTID;
-                }
-
-                if (mPendingDevice != null) {
-                    mLocalAdapter.enable();
-                    mPendingTurnOnStartId = startId;
-                } else {
-                    DockEventReceiver.finishStartingService(this, startId);
-                }
-            }
-        }
-    }
-
-    private void handleBluetoothStateOn(int startId) {
-        if (mPendingDevice != null) {
-            if (mPendingDevice.equals(mDevice)) {
-                if(DEBUG) {
-                    Log.d(TAG, "applying settings");
-                }
-                applyBtSettings(mPendingDevice, mPendingStartId);
-            } else if(DEBUG) {
-                Log.d(TAG, "mPendingDevice  (" + mPendingDevice + ") != mDevice ("
-                        + mDevice + ')');
-            }
-
-            mPendingDevice = null;
-            DockEventReceiver.finishStartingService(this, mPendingStartId);
-        } else {
-            final SharedPreferences prefs = getPrefs();
-            if (DEBUG) {
-                Log.d(TAG, "A DISABLE_BT_WHEN_UNDOCKED = "
-                        + prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false));
-            }
-            // Reconnect if docked and bluetooth was enabled by user.
-            Intent i = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
-            if (i != null) {
-                int state = i.getIntExtra(Intent.EXTRA_DOCK_STATE,
-                        Intent.EXTRA_DOCK_STATE_UNDOCKED);
-                if (state != Intent.EXTRA_DOCK_STATE_UNDOCKED) {
-                    BluetoothDevice device = i
-                            .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (device != null) {
-                        connectIfEnabled(device);
-                    }
-                } else if (prefs.getBoolean(KEY_DISABLE_BT, false)
-                        && mLocalAdapter.disable()) {
-                    mPendingTurnOffStartId = startId;
-                    prefs.edit().remove(KEY_DISABLE_BT).apply();
-                    return;
-                }
-            }
-        }
-
-        if (mPendingTurnOnStartId != INVALID_STARTID) {
-            DockEventReceiver.finishStartingService(this, mPendingTurnOnStartId);
-            mPendingTurnOnStartId = INVALID_STARTID;
-        }
-
-        DockEventReceiver.finishStartingService(this, startId);
-    }
-
-    private synchronized void handleUnexpectedDisconnect(BluetoothDevice disconnectedDevice,
-            LocalBluetoothProfile profile, int startId) {
-        if (DEBUG) {
-            Log.d(TAG, "handling failed connect for " + disconnectedDevice);
-        }
-
-            // Reconnect if docked.
-            if (disconnectedDevice != null) {
-                // registerReceiver can't be called from a BroadcastReceiver
-                Intent intent = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
-                if (intent != null) {
-                    int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE,
-                            Intent.EXTRA_DOCK_STATE_UNDOCKED);
-                    if (state != Intent.EXTRA_DOCK_STATE_UNDOCKED) {
-                        BluetoothDevice dockedDevice = intent
-                                .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                        if (dockedDevice != null && dockedDevice.equals(disconnectedDevice)) {
-                            CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
-                                    dockedDevice);
-                            cachedDevice.connectProfile(profile);
-                        }
-                    }
-                }
-            }
-
-            DockEventReceiver.finishStartingService(this, startId);
-    }
-
-    private synchronized void connectIfEnabled(BluetoothDevice device) {
+    // Called on the profile thread
+    private void connectIfEnabled(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
                 device);
         List<LocalBluetoothProfile> profiles = cachedDevice.getConnectableProfiles();
@@ -753,63 +629,30 @@ public final class DockService extends Service implements ServiceListener {
         }
     }
 
-    private synchronized void applyBtSettings(BluetoothDevice device, int startId) {
-        if (device == null || mProfiles == null || mCheckedItems == null
-                || mLocalAdapter == null) {
-            return;
-        }
-
-        // Turn on BT if something is enabled
-        for (boolean enable : mCheckedItems) {
-            if (enable) {
-                int btState = mLocalAdapter.getBluetoothState();
-                if (DEBUG) {
-                    Log.d(TAG, "BtState = " + btState);
-                }
-                // May have race condition as the phone comes in and out and in the dock.
-                // Always turn on BT
-                mLocalAdapter.enable();
-
-                // if adapter was previously OFF, TURNING_OFF, or TURNING_ON
-                if (btState != BluetoothAdapter.STATE_ON) {
-                    if (mPendingDevice != null && mPendingDevice.equals(mDevice)) {
-                        return;
-                    }
-
-                    mPendingDevice = device;
-                    mPendingStartId = startId;
-                    if (btState != BluetoothAdapter.STATE_TURNING_ON) {
-                        getPrefs().edit().putBoolean(
-                                KEY_DISABLE_BT_WHEN_UNDOCKED, true).apply();
-                    }
-                    return;
-                }
-            }
-        }
-
-        mPendingDevice = null;
-
+    // Called on the profile thread
+    private void applyBtSettings(BluetoothDevice device, LocalBluetoothProfile[] profiles,
+            boolean[] checkedItems) {
         boolean callConnect = false;
         CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
                 device);
-        for (int i = 0; i < mProfiles.length; i++) {
-            LocalBluetoothProfile profile = mProfiles[i];
-            if (DEBUG) Log.d(TAG, profile.toString() + " = " + mCheckedItems[i]);
+        for (int i = 0; i < profiles.length; i++) {
+            LocalBluetoothProfile profile = profiles[i];
+            if (DEBUG) Log.d(TAG, profile.toString() + " = " + checkedItems[i]);
 
-            if (mCheckedItems[i]) {
+            if (checkedItems[i]) {
                 // Checked but not connected
                 callConnect = true;
-            } else if (!mCheckedItems[i]) {
+            } else {
                 // Unchecked, may or may not be connected.
                 int status = profile.getConnectionStatus(cachedDevice.getDevice());
                 if (status == BluetoothProfile.STATE_CONNECTED) {
                     if (DEBUG) Log.d(TAG, "applyBtSettings - Disconnecting");
-                    cachedDevice.disconnect(mProfiles[i]);
+                    cachedDevice.disconnect(profile);
                 }
             }
-            profile.setPreferred(device, mCheckedItems[i]);
+            profile.setPreferred(device, checkedItems[i]);
             if (DEBUG) {
-                if (mCheckedItems[i] != profile.isPreferred(device)) {
+                if (checkedItems[i] != profile.isPreferred(device)) {
                     Log.e(TAG, "Can't save preferred value");
                 }
             }
@@ -821,30 +664,6 @@ public final class DockService extends Service implements ServiceListener {
         }
     }
 
-    private synchronized void handleDocked(BluetoothDevice device, int state,
-            int startId) {
-        if (LocalBluetoothPreferences.getDockAutoConnectSetting(this, device.getAddress())) {
-            // Setting == auto connect
-            initBtSettings(device, state, false);
-            applyBtSettings(mDevice, startId);
-        } else {
-            createDialog(device, state, startId);
-        }
-    }
-
-    private synchronized void handleUndocked(BluetoothDevice device) {
-        mRunnable = null;
-        mProfileManager.removeServiceListener(this);
-        if (mDialog != null) {
-            mDialog.dismiss();
-            mDialog = null;
-        }
-        mDevice = null;
-        mPendingDevice = null;
-        CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(device);
-        cachedDevice.disconnect();
-    }
-
     private CachedBluetoothDevice getCachedBluetoothDevice(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
         if (cachedDevice == null) {
@@ -853,12 +672,8 @@ public final class DockService extends Service implements ServiceListener {
         return cachedDevice;
     }
 
-    public synchronized void onServiceConnected() {
-        if (mRunnable != null) {
-            mRunnable.run();
-            mRunnable = null;
-            mProfileManager.removeServiceListener(this);
-        }
+    public void onServiceConnected() {
+        postEvent(DockStateMachine.EVENT_PROFILES_READY, 0);
     }
 
     public void onServiceDisconnected() {
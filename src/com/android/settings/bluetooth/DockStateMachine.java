@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Dock and Bluetooth logic of {@link DockService}: a state machine fed by a
+ * queue of typed events, each due at a given time.
+ * <p>
+ * Events are posted from any thread, and processed one at a time on a single
+ * thread by {@link #process}. Dock and undock events that are still queued
+ * when a newer one arrives are superseded by it, and docking again cancels
+ * the grace periods started by undocking. Everything the machine does goes
+ * through its {@link Environment}, and profile work may be done in the
+ * background, so processing never waits on a profile.
+ * <p>
+ * The machine only uses constants of the Android framework, so tests can
+ * replay sequences of events against a fake environment and clock, on a
+ * device or a plain JVM.
+ */
+final class DockStateMachine {
+
+    // Time allowed for the device to be undocked and redocked without severing
+    // the bluetooth connection
+    static final long UNDOCKED_GRACE_PERIOD = 1000;
+
+    // Time allowed for the device to be undocked and redocked without turning
+    // off Bluetooth
+    static final long DISABLE_BT_GRACE_PERIOD = 2000;
+
+    /** Nothing to do, except finishing the start of the service once idle. */
+    static final int EVENT_IGNORED = 0;
+    /** Device docked: address and dock state. */
+    static final int EVENT_DOCKED = 1;
+    /** Device undocked: address. */
+    static final int EVENT_UNDOCKED = 2;
+    /** User wants to set up the dock: address and dock state. */
+    static final int EVENT_SHOW_UI = 3;
+    /** Bluetooth adapter changed state: the new state. */
+    static final int EVENT_BT_STATE_CHANGED = 4;
+    /** A profile of a device disconnected unexpectedly: address and profile. */
+    static final int EVENT_PROFILE_DISCONNECTED = 5;
+    /** The profiles of LocalBluetoothProfileManager became ready. */
+    static final int EVENT_PROFILES_READY = 6;
+    /** User accepted the settings dialog: its id. */
+    static final int EVENT_SETTINGS_CHOSEN = 7;
+    /** The settings dialog went away: its id. */
+    static final int EVENT_DIALOG_DISMISSED = 8;
+    /** Undock grace period is over: address. */
+    private static final int EVENT_UNDOCK_TIMEOUT = 9;
+    /** Grace period before disabling Bluetooth is over. */
+    private static final int EVENT_DISABLE_BT_TIMEOUT = 10;
+
+    static final int PROFILE_HEADSET = 0;
+    static final int PROFILE_A2DP = 1;
+
+    static final int NO_START_ID = -100;
+
+    /** No dock, or not one we know of. */
+    static final int STATE_UNDOCKED = 0;
+    /** Docked, waiting for the profiles to be ready. */
+    static final int STATE_WAITING_FOR_PROFILES = 1;
+    /** Docked, waiting for the user to choose settings. */
+    static final int STATE_ASKING_USER = 2;
+    /** Docked, waiting for Bluetooth to turn on to apply settings. */
+    static final int STATE_ENABLING_BT = 3;
+    /** Docked, with settings applied or left alone by the user. */
+    static final int STATE_DOCKED = 4;
+
+    // Persisted flags, keeping the preference keys DockService always used
+    static final String FLAG_DISABLE_BT_WHEN_UNDOCKED = "disable_bt_when_undock";
+    static final String FLAG_DISABLE_BT = "disable_bt";
+
+    /**
+     * What the state machine acts on. Methods are called on the thread calling
+     * {@link DockStateMachine#process}, except for {@link #uptimeMillis} and
+     * {@link #scheduleProcessing}, which are called by any thread posting.
+     */
+    interface Environment {
+        /** Current time in milliseconds, on the clock events are due by. */
+        long uptimeMillis();
+
+        /** Call {@link DockStateMachine#process} at the given time, or soon after. */
+        void scheduleProcessing(long when);
+
+        int getBluetoothState();
+
+        boolean enableBluetooth();
+
+        boolean disableBluetooth();
+
+        boolean isProfileManagerReady();
+
+        /** Whether a device other than the dock is connected. */
+        boolean hasOtherConnectedDevices(String dockAddress);
+
+        /** Address of the dock the device is in right now, or {@code null}. */
+        String getDockedAddress();
+
+        boolean getFlag(String key);
+
+        void setFlag(String key, boolean value);
+
+        /** Whether the user chose to apply saved settings without asking. */
+        boolean getAutoConnectSetting(String address);
+
+        /** Load profile settings of the dock, as saved with its profiles. */
+        void loadSavedSettings(String address, int dockState);
+
+        /** Whether the loaded settings enable any profile. */
+        boolean hasEnabledProfiles();
+
+        /**
+         * Load settings of the dock and let the user change them. The dialog
+         * must post {@link #EVENT_SETTINGS_CHOSEN} and
+         * {@link #EVENT_DIALOG_DISMISSED} with the given id.
+         */
+        void showSettingsDialog(String address, int dockState, int dialogId);
+
+        /** Dismiss the dialog. Events it posts afterwards are ignored. */
+        void dismissSettingsDialog();
+
+        // Profile work below may be done asynchronously, but in order.
+
+        /** Connect and disconnect profiles of the dock as loaded. */
+        void applySettings(String address);
+
+        /** Connect to the device if it has an auto-connect profile. */
+        void connectIfAutoConnect(String address);
+
+        void connectProfile(String address, int profile);
+
+        /** Disconnect every profile of the device, dropping connects still queued. */
+        void disconnect(String address);
+
+        /**
+         * Done with the given start of the service and every one before it,
+         * once profile work queued so far is done.
+         */
+        void finishStartId(int startId);
+    }
+
+    private static final class Event {
+        final int type;
+        final String address;
+        /** Dock state, Bluetooth state, profile or dialog id. */
+        final int arg;
+        final int startId;
+        long when;
+
+        Event(int type, String address, int arg, int startId) {
+            this.type = type;
+            this.address = address;
+            this.arg = arg;
+            this.startId = startId;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{type=" + type + " address=" + address + " arg=" + arg
+                    + " startId=" + startId + " when=" + when + "}";
+        }
+    }
+
+    private final Environment mEnv;
+
+    /** Events by time due, then by time posted. Guarded by itself. */
+    private final ArrayList<Event> mQueue = new ArrayList<Event>();
+    /** Latest start of the service not finished yet. Guarded by mQueue. */
+    private int mLastStartId = NO_START_ID;
+
+    // Only touched while processing
+    private int mState = STATE_UNDOCKED;
+    private String mDockAddress;
+    private int mDockState;
+    private int mDialogId;
+    /** Bluetooth is to be turned off, and the service kept until it is. */
+    private boolean mDisablingBt;
+
+    DockStateMachine(Environment env) {
+        mEnv = env;
+    }
+
+    /**
+     * Queue an event to be processed right away, superseding queued dock
+     * and undock events if it's one itself.
+     */
+    void post(int type, String address, int arg, int startId) {
+        post(new Event(type, address, arg, startId), 0);
+    }
+
+    private void post(Event event, long delayMillis) {
+        event.when = mEnv.uptimeMillis() + delayMillis;
+        synchronized (mQueue) {
+            if (event.type == EVENT_DOCKED || event.type == EVENT_UNDOCKED) {
+                removeEventsLocked(EVENT_DOCKED);
+                removeEventsLocked(EVENT_UNDOCKED);
+            }
+            if (event.type == EVENT_UNDOCKED) {
+                removeEventsLocked(EVENT_SHOW_UI);
+            }
+            int i = mQueue.size();
+            while (i > 0 && mQueue.get(i - 1).when > event.when) {
+                i--;
+            }
+            mQueue.add(i, event);
+            if (event.startId != NO_START_ID) {
+                mLastStartId = Math.max(mLastStartId, event.startId);
+            }
+        }
+        mEnv.scheduleProcessing(event.when);
+    }
+
+    private void removeEvents(int type) {
+        synchronized (mQueue) {
+            removeEventsLocked(type);
+        }
+    }
+
+    private void removeEventsLocked(int type) {
+        for (Iterator<Event> it = mQueue.iterator(); it.hasNext(); ) {
+            if (it.next().type == type) {
+                it.remove();
+            }
+        }
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    String getDockAddress() {
+        return mDockAddress;
+    }
+
+    /**
+     * Handle every event due by now, then finish the started service if
+     * there is nothing left to wait for.
+     */
+    void process() {
+        while (true) {
+            final Event event;
+            synchronized (mQueue) {
+                if (mQueue.isEmpty() || mQueue.get(0).when > mEnv.uptimeMillis()) {
+                    break;
+                }
+                event = mQueue.remove(0);
+            }
+            handleEvent(event);
+        }
+
+        final int startId;
+        synchronized (mQueue) {
+            if (!mQueue.isEmpty() || mLastStartId == NO_START_ID || mDisablingBt
+                    || (mState != STATE_UNDOCKED && mState != STATE_DOCKED)) {
+                return;
+            }
+            startId = mLastStartId;
+            mLastStartId = NO_START_ID;
+        }
+        mEnv.finishStartId(startId);
+    }
+
+    private void handleEvent(Event event) {
+        switch (event.type) {
+            case EVENT_DOCKED:
+                handleDocked(event.address, event.arg);
+                break;
+
+            case EVENT_UNDOCKED:
+                post(new Event(EVENT_UNDOCK_TIMEOUT, event.address, 0, NO_START_ID),
+                        UNDOCKED_GRACE_PERIOD);
+                break;
+
+            case EVENT_UNDOCK_TIMEOUT:
+                handleUndocked(event.address);
+                break;
+
+            case EVENT_SHOW_UI:
+                showDialog(event.address, event.arg);
+                break;
+
+            case EVENT_BT_STATE_CHANGED:
+                handleBtStateChanged(event.arg);
+                break;
+
+            case EVENT_DISABLE_BT_TIMEOUT:
+                if (mEnv.disableBluetooth()) {
+                    mEnv.setFlag(FLAG_DISABLE_BT_WHEN_UNDOCKED, false);
+                } else {
+                    // Try again once Bluetooth is on
+                    mEnv.setFlag(FLAG_DISABLE_BT, true);
+                    mDisablingBt = true;
+                }
+                break;
+
+            case EVENT_PROFILE_DISCONNECTED:
+                // Reconnect if still docked
+                if (event.address.equals(mEnv.getDockedAddress())) {
+                    mEnv.connectProfile(event.address, event.arg);
+                }
+                break;
+
+            case EVENT_PROFILES_READY:
+                if (mState == STATE_WAITING_FOR_PROFILES) {
+                    startDockSession();
+                }
+                break;
+
+            case EVENT_SETTINGS_CHOSEN:
+                if (mState == STATE_ASKING_USER && event.arg == mDialogId) {
+                    mDialogId++;
+                    applySettings();
+                }
+                break;
+
+            case EVENT_DIALOG_DISMISSED:
+                if (mState == STATE_ASKING_USER && event.arg == mDialogId) {
+                    mDialogId++;
+                    mState = mDockAddress != null ? STATE_DOCKED : STATE_UNDOCKED;
+                }
+                break;
+        }
+    }
+
+    private void handleDocked(String address, int dockState) {
+        // Docked again within the grace periods of undocking
+        removeEvents(EVENT_UNDOCK_TIMEOUT);
+        removeEvents(EVENT_DISABLE_BT_TIMEOUT);
+        mEnv.setFlag(FLAG_DISABLE_BT, false);
+        mDisablingBt = false;
+
+        if (address.equals(mDockAddress)) {
+            return;
+        }
+        if (mDockAddress != null) {
+            // Not expected. Cleanup/undock existing
+            mEnv.disconnect(mDockAddress);
+            endDockSession();
+        }
+        mDockAddress = address;
+        mDockState = dockState;
+        if (mEnv.isProfileManagerReady()) {
+            startDockSession();
+        } else {
+            mState = STATE_WAITING_FOR_PROFILES;
+        }
+    }
+
+    private void startDockSession() {
+        if (mEnv.getAutoConnectSetting(mDockAddress)) {
+            mEnv.loadSavedSettings(mDockAddress, mDockState);
+            applySettings();
+        } else {
+            showDialog(mDockAddress, mDockState);
+        }
+    }
+
+    private void showDialog(String address, int dockState) {
+        if (mState == STATE_ASKING_USER) {
+            // Shouldn't normally happen
+            mEnv.dismissSettingsDialog();
+        }
+        mDockAddress = address;
+        mDockState = dockState;
+        mDialogId++;
+        mState = STATE_ASKING_USER;
+        mEnv.showSettingsDialog(address, dockState, mDialogId);
+    }
+
+    private void applySettings() {
+        if (mEnv.hasEnabledProfiles()) {
+            final int btState = mEnv.getBluetoothState();
+            // May have race condition as the phone comes in and out and in the dock.
+            // Always turn on BT
+            mEnv.enableBluetooth();
+
+            // if adapter was previously OFF, TURNING_OFF, or TURNING_ON
+            if (btState != BluetoothAdapter.STATE_ON) {
+                if (mState != STATE_ENABLING_BT) {
+                    mState = STATE_ENABLING_BT;
+                    if (btState != BluetoothAdapter.STATE_TURNING_ON) {
+                        mEnv.setFlag(FLAG_DISABLE_BT_WHEN_UNDOCKED, true);
+                    }
+                }
+                return;
+            }
+        }
+        mState = STATE_DOCKED;
+        mEnv.applySettings(mDockAddress);
+    }
+
+    private void handleUndocked(String address) {
+        final String dockAddress = mDockAddress;
+        endDockSession();
+        mEnv.disconnect(address);
+        if (dockAddress != null && !dockAddress.equals(address)) {
+            mEnv.disconnect(dockAddress);
+        }
+
+        if (mEnv.getFlag(FLAG_DISABLE_BT_WHEN_UNDOCKED)) {
+            if (mEnv.hasOtherConnectedDevices(address)) {
+                // Don't disable BT if something is connected
+                mEnv.setFlag(FLAG_DISABLE_BT_WHEN_UNDOCKED, false);
+            } else {
+                // BT was disabled when we first docked
+                post(new Event(EVENT_DISABLE_BT_TIMEOUT, null, 0, NO_START_ID),
+                        DISABLE_BT_GRACE_PERIOD);
+            }
+        }
+    }
+
+    private void endDockSession() {
+        if (mState == STATE_ASKING_USER) {
+            mEnv.dismissSettingsDialog();
+            mDialogId++;
+        }
+        mState = STATE_UNDOCKED;
+        mDockAddress = null;
+    }
+
+    private void handleBtStateChanged(int btState) {
+        switch (btState) {
+            case BluetoothAdapter.STATE_ON:
+                if (mState == STATE_ENABLING_BT) {
+                    applySettings();
+                } else {
+                    // Reconnect if docked and bluetooth was enabled by user.
+                    final String address = mEnv.getDockedAddress();
+                    if (address != null) {
+                        mEnv.connectIfAutoConnect(address);
+                    } else if (mEnv.getFlag(FLAG_DISABLE_BT) && mEnv.disableBluetooth()) {
+                        mEnv.setFlag(FLAG_DISABLE_BT, false);
+                        mDisablingBt = true;
+                    }
+                }
+                break;
+
+            case BluetoothAdapter.STATE_TURNING_OFF:
+                // Remove the flag to disable BT if someone is turning off bt.
+                // The rational is that:
+                // a) if BT is off at undock time, no work needs to be done
+                // b) if BT is on at undock time, the user wants it on.
+                mEnv.setFlag(FLAG_DISABLE_BT_WHEN_UNDOCKED, false);
+                break;
+
+            case BluetoothAdapter.STATE_OFF:
+                if (mDisablingBt) {
+                    mEnv.setFlag(FLAG_DISABLE_BT, false);
+                    mDisablingBt = false;
+                }
+                // Bluetooth was turning off as we were trying to turn it on.
+                // Let's try again
+                if (mState == STATE_ENABLING_BT) {
+                    mEnv.enableBluetooth();
+                }
+                break;
+        }
+    }
+}
@@ -98,6 +98,10 @@ public final class LocalBluetoothAdapter {
         return mAdapter.getBondedDevices();
     }
 
+    BluetoothDevice getRemoteDevice(String address) {
+        return mAdapter.getRemoteDevice(address);
+    }
+
     String getName() {
         return mAdapter.getName();
     }
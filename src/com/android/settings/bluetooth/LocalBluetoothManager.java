@@ -73,6 +73,7 @@ public final class LocalBluetoothManager {
     private LocalBluetoothManager(LocalBluetoothAdapter adapter, Context context) {
         mContext = context;
         mLocalAdapter = adapter;
+        LocalBluetoothPreferences.preload(context);
 
         mCachedDeviceManager = new CachedBluetoothDeviceManager(context);
         mEventManager = new BluetoothEventManager(mLocalAdapter,
@@ -19,10 +19,22 @@ package com.android.settings.bluetooth;
 import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * LocalBluetoothPreferences provides an interface to the preferences
  * related to Bluetooth.
+ * <p>
+ * Reads are served from an in-memory copy of the preferences, loaded in the
+ * background by {@link #preload}. Writes update that copy right away and are
+ * persisted together, with a single {@code apply()} per
+ * {@link #FLUSH_DELAY_MS}. Writes still held back are applied by
+ * {@link QueuedWork#waitToFinish}, so they aren't lost when the process goes
+ * away after an activity pauses or a service stops.
  */
 final class LocalBluetoothPreferences {
 //    private static final String TAG = "LocalBluetoothPreferences";
@@ -44,6 +56,28 @@ final class LocalBluetoothPreferences {
 
     private static final String KEY_DISCOVERABLE_END_TIMESTAMP = "discoverable_end_timestamp";
 
+    /** How long writes are held back to be persisted together. */
+    private static final long FLUSH_DELAY_MS = 500;
+
+    /** Value of a pending write that removes its key. */
+    private static final Object REMOVED = new Object();
+
+    private static final Object sLock = new Object();
+
+    /** Copy of the preferences, or {@code null} until loaded. Guarded by sLock. */
+    private static HashMap<String, Object> sValues;
+
+    /** Writes not persisted yet, by key. Guarded by sLock. */
+    private static final HashMap<String, Object> sPendingWrites = new HashMap<String, Object>();
+
+    /** Guarded by sLock. */
+    private static boolean sFlushScheduled;
+
+    /** Application context to persist with. Guarded by sLock. */
+    private static Context sContext;
+
+    private static Handler sHandler;
+
     private LocalBluetoothPreferences() {
     }
 
@@ -51,9 +85,159 @@ final class LocalBluetoothPreferences {
         return context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
     }
 
+    /**
+     * Start loading the preferences in the background, so later reads don't
+     * wait for disk.
+     */
+    static void preload(Context context) {
+        final Context appContext = getApplicationContext(context);
+        synchronized (sLock) {
+            if (sValues != null) {
+                return;
+            }
+        }
+        QueuedWork.singleThreadExecutor().submit(new Runnable() {
+            public void run() {
+                load(appContext);
+            }
+        });
+    }
+
+    private static Context getApplicationContext(Context context) {
+        final Context appContext = context.getApplicationContext();
+        return appContext != null ? appContext : context;
+    }
+
+    /**
+     * Read the preferences from disk unless already loaded. Writes made in
+     * the meantime are still pending, and win over what was read.
+     */
+    private static void load(Context context) {
+        synchronized (sLock) {
+            if (sValues != null) {
+                return;
+            }
+        }
+        final Map<String, ?> all = getSharedPreferences(context).getAll();
+        synchronized (sLock) {
+            if (sValues != null) {
+                return;
+            }
+            sValues = new HashMap<String, Object>(all);
+            for (Map.Entry<String, Object> entry : sPendingWrites.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    sValues.remove(entry.getKey());
+                } else {
+                    sValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static Object getValue(Context context, String key) {
+        synchronized (sLock) {
+            if (sValues != null) {
+                return sValues.get(key);
+            }
+        }
+        // Only reached when read before preload() got to run
+        load(getApplicationContext(context));
+        synchronized (sLock) {
+            return sValues.get(key);
+        }
+    }
+
+    private static long getLong(Context context, String key, long defValue) {
+        final Object value = getValue(context, key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    /**
+     * Update the given key in memory, and schedule it to be persisted.
+     *
+     * @param value new value, or {@link #REMOVED}.
+     * @param delayMillis how long to wait for more writes to persist with, or
+     *            0 to apply every pending write right away.
+     */
+    private static void putValue(Context context, String key, Object value, long delayMillis) {
+        synchronized (sLock) {
+            if (sValues != null) {
+                if (value == REMOVED) {
+                    sValues.remove(key);
+                } else {
+                    sValues.put(key, value);
+                }
+            }
+            sPendingWrites.put(key, value);
+            if (sContext == null) {
+                sContext = getApplicationContext(context);
+            }
+            if (delayMillis > 0) {
+                if (!sFlushScheduled) {
+                    sFlushScheduled = true;
+                    if (sHandler == null) {
+                        sHandler = new Handler(Looper.getMainLooper());
+                    }
+                    QueuedWork.add(sFlushRunnable);
+                    sHandler.postDelayed(sFlushRunnable, delayMillis);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Runs once the delay is over, or from {@link QueuedWork#waitToFinish}
+     * when that comes first.
+     */
+    private static final Runnable sFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Persist every pending write with a single {@code apply()}, which
+     * {@link QueuedWork#waitToFinish} then waits for. Synchronized so that
+     * concurrent flushes apply in the order they took their writes.
+     */
+    private static synchronized void flush() {
+        final HashMap<String, Object> writes;
+        final Context context;
+        synchronized (sLock) {
+            if (sFlushScheduled) {
+                sFlushScheduled = false;
+                sHandler.removeCallbacks(sFlushRunnable);
+                QueuedWork.remove(sFlushRunnable);
+            }
+            if (sPendingWrites.isEmpty()) {
+                return;
+            }
+            writes = new HashMap<String, Object>(sPendingWrites);
+            sPendingWrites.clear();
+            context = sContext;
+        }
+
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        for (Map.Entry<String, Object> entry : writes.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value == REMOVED) {
+                editor.remove(key);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else {
+                editor.putString(key, (String) value);
+            }
+        }
+        editor.apply();
+    }
+
     static long getDiscoverableEndTimestamp(Context context) {
-        return getSharedPreferences(context).getLong(
-                KEY_DISCOVERABLE_END_TIMESTAMP, 0);
+        return getLong(context, KEY_DISCOVERABLE_END_TIMESTAMP, 0);
     }
 
     static boolean shouldShowDialogInForeground(Context context,
@@ -69,11 +253,9 @@ final class LocalBluetoothPreferences {
         }
 
         long currentTimeMillis = System.currentTimeMillis();
-        SharedPreferences sharedPreferences = getSharedPreferences(context);
 
         // If the device was in discoverABLE mode recently
-        long lastDiscoverableEndTime = sharedPreferences.getLong(
-                KEY_DISCOVERABLE_END_TIMESTAMP, 0);
+        long lastDiscoverableEndTime = getLong(context, KEY_DISCOVERABLE_END_TIMESTAMP, 0);
         if ((lastDiscoverableEndTime + GRACE_PERIOD_TO_SHOW_DIALOGS_IN_FOREGROUND)
                 > currentTimeMillis) {
             return true;
@@ -83,19 +265,17 @@ final class LocalBluetoothPreferences {
         LocalBluetoothAdapter adapter = manager.getBluetoothAdapter();
         if (adapter != null && adapter.isDiscovering()) {
             return true;
-        } else if ((sharedPreferences.getLong(KEY_DISCOVERING_TIMESTAMP, 0) +
+        } else if ((getLong(context, KEY_DISCOVERING_TIMESTAMP, 0) +
                 GRACE_PERIOD_TO_SHOW_DIALOGS_IN_FOREGROUND) > currentTimeMillis) {
             return true;
         }
 
         // If the device was picked in the device picker recently
         if (deviceAddress != null) {
-            String lastSelectedDevice = sharedPreferences.getString(
-                    KEY_LAST_SELECTED_DEVICE, null);
+            Object lastSelectedDevice = getValue(context, KEY_LAST_SELECTED_DEVICE);
 
             if (deviceAddress.equals(lastSelectedDevice)) {
-                long lastDeviceSelectedTime = sharedPreferences.getLong(
-                        KEY_LAST_SELECTED_DEVICE_TIME, 0);
+                long lastDeviceSelectedTime = getLong(context, KEY_LAST_SELECTED_DEVICE_TIME, 0);
                 if ((lastDeviceSelectedTime + GRACE_PERIOD_TO_SHOW_DIALOGS_IN_FOREGROUND)
                         > currentTimeMillis) {
                     return true;
@@ -106,52 +286,37 @@ final class LocalBluetoothPreferences {
     }
 
     static void persistSelectedDeviceInPicker(Context context, String deviceAddress) {
-        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
-        editor.putString(KEY_LAST_SELECTED_DEVICE,
-                deviceAddress);
-        editor.putLong(KEY_LAST_SELECTED_DEVICE_TIME,
-                System.currentTimeMillis());
-        editor.apply();
+        putValue(context, KEY_LAST_SELECTED_DEVICE, deviceAddress, FLUSH_DELAY_MS);
+        putValue(context, KEY_LAST_SELECTED_DEVICE_TIME, System.currentTimeMillis(),
+                FLUSH_DELAY_MS);
     }
 
     static void persistDiscoverableEndTimestamp(Context context, long endTimestamp) {
-        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
-        editor.putLong(KEY_DISCOVERABLE_END_TIMESTAMP, endTimestamp);
-        editor.apply();
+        putValue(context, KEY_DISCOVERABLE_END_TIMESTAMP, endTimestamp, FLUSH_DELAY_MS);
     }
 
-    static void persistDiscoveringTimestamp(final Context context) {
-        // Load the shared preferences and edit it on a background
-        // thread (but serialized!).
-        QueuedWork.singleThreadExecutor().submit(new Runnable() {
-                public void run() {
-                    SharedPreferences.Editor editor = getSharedPreferences(context).edit();
-                    editor.putLong(
-                            KEY_DISCOVERING_TIMESTAMP,
-                        System.currentTimeMillis());
-                    editor.apply();
-                }
-            });
+    static void persistDiscoveringTimestamp(Context context) {
+        putValue(context, KEY_DISCOVERING_TIMESTAMP, System.currentTimeMillis(),
+                FLUSH_DELAY_MS);
     }
 
     static boolean hasDockAutoConnectSetting(Context context, String addr) {
-        return getSharedPreferences(context).contains(KEY_DOCK_AUTO_CONNECT + addr);
+        return getValue(context, KEY_DOCK_AUTO_CONNECT + addr) != null;
     }
 
     static boolean getDockAutoConnectSetting(Context context, String addr) {
-        return getSharedPreferences(context).getBoolean(KEY_DOCK_AUTO_CONNECT + addr,
-                false);
+        final Object value = getValue(context, KEY_DOCK_AUTO_CONNECT + addr);
+        return value instanceof Boolean && (Boolean) value;
     }
 
+    // Dock settings are chosen by the user and DockService may stop right
+    // after, so they're applied from the calling thread without waiting for
+    // more writes.
     static void saveDockAutoConnectSetting(Context context, String addr, boolean autoConnect) {
-        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
-        editor.putBoolean(KEY_DOCK_AUTO_CONNECT + addr, autoConnect);
-        editor.apply();
+        putValue(context, KEY_DOCK_AUTO_CONNECT + addr, autoConnect, 0);
     }
 
     static void removeDockAutoConnectSetting(Context context, String addr) {
-        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
-        editor.remove(KEY_DOCK_AUTO_CONNECT + addr);
-        editor.apply();
+        putValue(context, KEY_DOCK_AUTO_CONNECT + addr, REMOVED, 0);
     }
 }
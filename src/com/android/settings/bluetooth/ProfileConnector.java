@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects the profiles of one {@link CachedBluetoothDevice} at once, and
+ * follows each of them until connected or failed.
+ * <p>
+ * Sending a connect command costs each profile several binder calls, since
+ * it first disconnects other devices of the profile, and profiles are served
+ * by different processes. So the commands of independent profiles are sent
+ * in parallel from pooled threads, rather than one after the other on the
+ * calling thread. Once every profile of a round has settled, the time each
+ * took to connect is logged.
+ */
+class ProfileConnector {
+    private static final String TAG = "ProfileConnector";
+
+    /** One thread per profile that can be connected: A2DP, headset, HID and PAN. */
+    private static final int MAX_THREADS = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** Profiles that haven't settled by then are given up on by the next round. */
+    private static final long ROUND_TIMEOUT_MS = 30 * 1000;
+
+    private static final Executor sExecutor = createExecutor();
+
+    /** Waiting for a pooled thread to send the connect command. */
+    private static final int STATE_PENDING = 0;
+    /** Command accepted, waiting for the profile to change state. */
+    private static final int STATE_SENT = 1;
+    private static final int STATE_CONNECTING = 2;
+    private static final int STATE_CONNECTED = 3;
+    /** Command rejected, or the profile disconnected before connecting. */
+    private static final int STATE_FAILED = 4;
+
+    private static class Attempt {
+        int state = STATE_PENDING;
+        long connectedTime;
+    }
+
+    private final BluetoothDevice mDevice;
+
+    /** Profiles connecting in the current round. Guarded by this. */
+    private final HashMap<LocalBluetoothProfile, Attempt> mAttempts =
+            new HashMap<LocalBluetoothProfile, Attempt>();
+    /** Start of the current round. Guarded by this. */
+    private long mStartTime;
+
+    ProfileConnector(BluetoothDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Send connect commands for the given profiles in the background. Joins
+     * the round in progress, if any.
+     */
+    synchronized void connect(List<LocalBluetoothProfile> profiles) {
+        final long now = SystemClock.elapsedRealtime();
+        if (!mAttempts.isEmpty() && now - mStartTime > ROUND_TIMEOUT_MS) {
+            mAttempts.clear();
+        }
+        if (mAttempts.isEmpty()) {
+            mStartTime = now;
+        }
+        for (final LocalBluetoothProfile profile : profiles) {
+            mAttempts.put(profile, new Attempt());
+            sExecutor.execute(new Runnable() {
+                public void run() {
+                    final boolean sent = profile.connect(mDevice);
+                    if (sent) {
+                        if (Utils.D) {
+                            Log.d(TAG, "Command sent successfully:CONNECT Address:" + mDevice
+                                    + " Profile:" + profile);
+                        }
+                    } else {
+                        Log.i(TAG, "Failed to connect " + profile + " to " + mDevice);
+                    }
+                    onCommandSent(profile, sent);
+                }
+            });
+        }
+    }
+
+    private synchronized void onCommandSent(LocalBluetoothProfile profile, boolean sent) {
+        final Attempt attempt = mAttempts.get(profile);
+        // The profile may already have changed state, or been asked again
+        if (attempt == null || attempt.state != STATE_PENDING) {
+            return;
+        }
+        attempt.state = sent ? STATE_SENT : STATE_FAILED;
+        finishRoundIfSettled();
+    }
+
+    /**
+     * Called when the given profile of the device changed connection state.
+     */
+    synchronized void onProfileStateChanged(LocalBluetoothProfile profile, int newState) {
+        final Attempt attempt = mAttempts.get(profile);
+        if (attempt == null) {
+            return;
+        }
+        switch (newState) {
+            case BluetoothProfile.STATE_CONNECTING:
+                attempt.state = STATE_CONNECTING;
+                break;
+            case BluetoothProfile.STATE_CONNECTED:
+                attempt.state = STATE_CONNECTED;
+                attempt.connectedTime = SystemClock.elapsedRealtime();
+                break;
+            case BluetoothProfile.STATE_DISCONNECTED:
+                // Other devices of the profile are disconnected before
+                // sending the command, so only count this once it's sent.
+                if (attempt.state == STATE_SENT || attempt.state == STATE_CONNECTING) {
+                    attempt.state = STATE_FAILED;
+                }
+                break;
+        }
+        finishRoundIfSettled();
+    }
+
+    private void finishRoundIfSettled() {
+        int connected = 0;
+        long lastConnectedTime = mStartTime;
+        for (Attempt attempt : mAttempts.values()) {
+            if (attempt.state == STATE_CONNECTED) {
+                connected++;
+                lastConnectedTime = Math.max(lastConnectedTime, attempt.connectedTime);
+            } else if (attempt.state != STATE_FAILED) {
+                return;
+            }
+        }
+
+        if (Utils.D) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Connected ").append(connected).append(" of ").append(mAttempts.size())
+                    .append(" profiles to ").append(mDevice);
+            if (connected > 0) {
+                sb.append(" in ").append(lastConnectedTime - mStartTime).append("ms");
+            }
+            for (Map.Entry<LocalBluetoothProfile, Attempt> entry : mAttempts.entrySet()) {
+                final Attempt attempt = entry.getValue();
+                sb.append(' ').append(entry.getKey()).append('=');
+                if (attempt.state == STATE_CONNECTED) {
+                    sb.append(attempt.connectedTime - mStartTime).append("ms");
+                } else {
+                    sb.append("failed");
+                }
+            }
+            Log.d(TAG, sb.toString());
+        }
+        mAttempts.clear();
+    }
+
+    private static Executor createExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ProfileConnector #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
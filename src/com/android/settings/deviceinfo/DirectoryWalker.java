@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures disk usage of a set of directory trees, counting allocated blocks
+ * the same way as {@code IMediaContainerService.calculateDirectorySize()}.
+ * <p>
+ * Directories from every tree share one work queue, drained by pooled threads
+ * and the calling thread alike, so a single deep tree is split across threads
+ * as well. Each entry costs one {@code lstat()}, which gives both its type and
+ * size, and symbolic links aren't followed. The calling thread reports
+ * partial totals while it works, and a walk can be cancelled from any thread.
+ * <p>
+ * When given a {@link StorageMeasurementCache}, a directory whose entry is
+ * still valid costs only the {@code lstat()} of itself: its size and
+ * subdirectories come from the cache instead of listing it.
+ */
+class DirectoryWalker {
+    private static final int MAX_PARALLELISM = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** How long an idle thread waits for other threads to queue directories. */
+    private static final long POLL_TIMEOUT_MS = 20;
+
+    /** Minimum time between {@link Listener#onProgress} calls. */
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private static final long BYTES_PER_BLOCK = 512;
+
+    private static final Executor sExecutor = createExecutor();
+
+    interface Listener {
+        /** Called on the measuring thread with the total measured so far. */
+        public void onProgress(long partialSize);
+    }
+
+    private final int mParallelism;
+    private final Listener mListener;
+    private final StorageMeasurementCache mCache;
+
+    private volatile boolean mCancelled;
+
+    /** Directories still to be listed, with index of the tree they belong to. */
+    private final LinkedBlockingQueue<Directory> mQueue = new LinkedBlockingQueue<Directory>();
+    /** Directories queued or being listed. The walk is done once this is zero. */
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private volatile boolean mFinished;
+
+    private AtomicLongArray mSizes;
+    private long mLastProgress;
+
+    /** Number of lstat() and list calls made, for benchmarks. */
+    private final AtomicInteger mStatCount = new AtomicInteger();
+    private final AtomicInteger mListCount = new AtomicInteger();
+
+    /**
+     * @param parallelism maximum number of threads to walk with, including the
+     *            calling thread. Pass {@code 1} to walk sequentially.
+     * @param listener receives partial totals, or {@code null}.
+     * @param cache directories to reuse and record, or {@code null}.
+     */
+    DirectoryWalker(int parallelism, Listener listener, StorageMeasurementCache cache) {
+        mParallelism = Math.max(1, Math.min(parallelism, MAX_PARALLELISM + 1));
+        mListener = listener;
+        mCache = cache;
+    }
+
+    DirectoryWalker(Listener listener, StorageMeasurementCache cache) {
+        this(MAX_PARALLELISM + 1, listener, cache);
+    }
+
+    /**
+     * Stop any walk in progress as soon as possible. Can be called from any
+     * thread, and a cancelled walker can't be used again.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    int getStatCount() {
+        return mStatCount.get();
+    }
+
+    int getListCount() {
+        return mListCount.get();
+    }
+
+    /**
+     * Measure size of each given directory, blocking until done. Can only be
+     * called once.
+     *
+     * @return size of each directory in bytes, or {@code null} if cancelled.
+     */
+    long[] measure(String[] dirs) {
+        mSizes = new AtomicLongArray(dirs.length);
+        for (int i = 0; i < dirs.length; i++) {
+            push(new Directory(dirs[i], i));
+        }
+
+        for (int i = 1; i < mParallelism; i++) {
+            sExecutor.execute(mWorker);
+        }
+        drain(true);
+
+        // don't wait on workers that never got started, they'll see we're done
+        mFinished = true;
+        synchronized (mRunning) {
+            while (mRunning.get() > 0) {
+                try {
+                    mRunning.wait();
+                } catch (InterruptedException e) {
+                    mCancelled = true;
+                }
+            }
+        }
+
+        if (mCancelled) return null;
+        final long[] sizes = new long[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            sizes[i] = mSizes.get(i);
+        }
+        return sizes;
+    }
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            mRunning.incrementAndGet();
+            try {
+                if (!mFinished) {
+                    drain(false);
+                }
+            } finally {
+                synchronized (mRunning) {
+                    if (mRunning.decrementAndGet() == 0) {
+                        mRunning.notifyAll();
+                    }
+                }
+            }
+        }
+    };
+
+    private void push(Directory dir) {
+        mPending.incrementAndGet();
+        mQueue.add(dir);
+    }
+
+    private void drain(boolean reportProgress) {
+        while (!mCancelled && mPending.get() > 0) {
+            final Directory dir;
+            try {
+                dir = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                mCancelled = true;
+                return;
+            }
+            if (dir == null) continue;
+
+            try {
+                measureDirectory(dir);
+            } finally {
+                mPending.decrementAndGet();
+            }
+
+            if (reportProgress && mListener != null) {
+                final long now = SystemClock.uptimeMillis();
+                if (now - mLastProgress >= PROGRESS_INTERVAL_MS) {
+                    mLastProgress = now;
+                    mListener.onProgress(getPartialSize());
+                }
+            }
+        }
+    }
+
+    private void measureDirectory(Directory dir) {
+        StructStat dirStat = null;
+        if (mCache != null) {
+            mStatCount.incrementAndGet();
+            try {
+                dirStat = Libcore.os.lstat(dir.path);
+            } catch (ErrnoException e) {
+                return;
+            }
+            final StorageMeasurementCache.DirectoryEntry cached = mCache.getDirectory(dir.path);
+            if (cached != null && cached.matches(dirStat)) {
+                // keeps the time it was measured, so it still expires
+                mCache.putDirectory(dir.path, cached);
+                for (String name : cached.mSubdirs) {
+                    push(new Directory(dir.path + "/" + name, dir.index));
+                }
+                mSizes.addAndGet(dir.index, cached.mSize);
+                return;
+            }
+        }
+
+        mListCount.incrementAndGet();
+        final String[] names = new File(dir.path).list();
+        if (names == null) return;
+
+        final ArrayList<String> subdirs = mCache != null ? new ArrayList<String>() : null;
+        long size = 0;
+        long newestChildMtime = 0;
+        for (String name : names) {
+            if (mCancelled) break;
+
+            final String path = dir.path + "/" + name;
+            final StructStat stat;
+            mStatCount.incrementAndGet();
+            try {
+                stat = Libcore.os.lstat(path);
+            } catch (ErrnoException e) {
+                continue;
+            }
+            size += stat.st_blocks * BYTES_PER_BLOCK;
+            newestChildMtime = Math.max(newestChildMtime, stat.st_mtime);
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                push(new Directory(path, dir.index));
+                if (subdirs != null) subdirs.add(name);
+            }
+        }
+        mSizes.addAndGet(dir.index, size);
+
+        // a file still being written grows without touching its directory
+        if (mCache != null && !mCancelled
+                && StorageMeasurementCache.isSettled(dirStat, newestChildMtime)) {
+            mCache.putDirectory(dir.path, new StorageMeasurementCache.DirectoryEntry(
+                    dirStat, size, subdirs.toArray(new String[subdirs.size()])));
+        }
+    }
+
+    private long getPartialSize() {
+        long total = 0;
+        for (int i = 0; i < mSizes.length(); i++) {
+            total += mSizes.get(i);
+        }
+        return total;
+    }
+
+    private static class Directory {
+        public final String path;
+        public final int index;
+
+        public Directory(String path, int index) {
+            this.path = path;
+            this.index = index;
+        }
+    }
+
+    private static Executor createExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLELISM,
+                MAX_PARALLELISM, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("DirectoryWalker #" + mCount.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Deletes a batch of files and directory trees on pooled background threads,
+ * reporting space freed as it goes. Space is counted in allocated blocks, the
+ * same way as {@link DirectoryWalker} measures it.
+ * <p>
+ * Each path is deleted by a single thread, and at most
+ * {@link #MAX_PARALLELISM} paths of a batch are deleted at once, since one
+ * volume gains little from more. A batch can be cancelled from any thread,
+ * leaving paths partially deleted.
+ */
+class FileDeleter {
+    private static final String TAG = "FileDeleter";
+
+    private static final int MAX_PARALLELISM = 2;
+    /** Volumes deleting at once before batches wait for each other. */
+    private static final int MAX_THREADS = 2 * MAX_PARALLELISM;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** Minimum time between {@link Listener#onProgress} calls. */
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private static final long BYTES_PER_BLOCK = 512;
+
+    private static final Executor sExecutor = createExecutor();
+
+    interface Listener {
+        /** Called on a deleting thread with the total freed so far. */
+        public void onProgress(long freedSize);
+
+        /**
+         * Called on a deleting thread once every path is done, or the
+         * batch was cancelled.
+         *
+         * @param deleted whether each path is completely gone.
+         * @param freedSizes space freed under each path, in bytes.
+         */
+        public void onFinished(boolean[] deleted, long[] freedSizes);
+    }
+
+    private final String[] mPaths;
+    private final Listener mListener;
+
+    private volatile boolean mCancelled;
+
+    private final AtomicInteger mNextPath = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicLongArray mFreedSizes;
+    private final AtomicLong mFreedSize = new AtomicLong();
+    private final AtomicLong mLastProgress = new AtomicLong();
+    /** Written by the thread deleting each path, read after all are done. */
+    private final boolean[] mDeleted;
+
+    /** Number of lstat(), list and remove() calls made, for benchmarks. */
+    private final AtomicInteger mStatCount = new AtomicInteger();
+    private final AtomicInteger mListCount = new AtomicInteger();
+    private final AtomicInteger mRemoveCount = new AtomicInteger();
+
+    FileDeleter(String[] paths, Listener listener) {
+        mPaths = paths;
+        mListener = listener;
+        mFreedSizes = new AtomicLongArray(paths.length);
+        mDeleted = new boolean[paths.length];
+    }
+
+    /**
+     * Start deleting in the background. Can only be called once.
+     */
+    void start() {
+        final int threads = Math.max(1, Math.min(MAX_PARALLELISM, mPaths.length));
+        mRunning.set(threads);
+        for (int i = 0; i < threads; i++) {
+            sExecutor.execute(mWorker);
+        }
+    }
+
+    /**
+     * Stop deleting as soon as possible. {@link Listener#onFinished} is
+     * still called once threads give up.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    int getStatCount() {
+        return mStatCount.get();
+    }
+
+    int getListCount() {
+        return mListCount.get();
+    }
+
+    int getRemoveCount() {
+        return mRemoveCount.get();
+    }
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            int index;
+            while (!mCancelled && (index = mNextPath.getAndIncrement()) < mPaths.length) {
+                mDeleted[index] = delete(mPaths[index], index);
+            }
+
+            // last thread out reports, after every write to mDeleted
+            if (mRunning.decrementAndGet() == 0) {
+                final long[] freedSizes = new long[mPaths.length];
+                for (int i = 0; i < mPaths.length; i++) {
+                    freedSizes[i] = mFreedSizes.get(i);
+                }
+                mListener.onFinished(mDeleted, freedSizes);
+            }
+        }
+    };
+
+    /**
+     * Delete the given path and everything under it, without following
+     * symbolic links. Keeps going past entries that can't be deleted.
+     *
+     * @return {@code true} if the path is gone.
+     */
+    private boolean delete(String path, int index) {
+        final StructStat stat;
+        mStatCount.incrementAndGet();
+        try {
+            stat = Libcore.os.lstat(path);
+        } catch (ErrnoException e) {
+            return e.errno == OsConstants.ENOENT;
+        }
+
+        boolean emptied = true;
+        if (OsConstants.S_ISDIR(stat.st_mode)) {
+            mListCount.incrementAndGet();
+            final String[] names = new File(path).list();
+            if (names != null) {
+                for (String name : names) {
+                    if (mCancelled) return false;
+                    emptied &= delete(path + "/" + name, index);
+                }
+            }
+        }
+        if (mCancelled || !emptied) return false;
+
+        mRemoveCount.incrementAndGet();
+        try {
+            Libcore.os.remove(path);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENOENT) {
+                Log.w(TAG, "Problem deleting " + path, e);
+                return false;
+            }
+        }
+
+        final long size = stat.st_blocks * BYTES_PER_BLOCK;
+        mFreedSizes.addAndGet(index, size);
+        final long freedSize = mFreedSize.addAndGet(size);
+
+        final long now = SystemClock.uptimeMillis();
+        final long last = mLastProgress.get();
+        if (now - last >= PROGRESS_INTERVAL_MS && mLastProgress.compareAndSet(last, now)) {
+            mListener.onProgress(freedSize);
+        }
+        return true;
+    }
+
+    private static Executor createExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("FileDeleter #" + mCount.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -17,8 +17,11 @@
 package com.android.settings.deviceinfo;
 
 import android.app.Activity;
+import android.app.Dialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
@@ -39,21 +42,24 @@ import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.ListView;
 
 import com.android.settings.R;
+import com.android.settings.deviceinfo.StorageMeasurement.DeletionReceiver;
 import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This class handles the selection and removal of Misc files.
  */
-public class MiscFilesHandler extends ListActivity {
+public class MiscFilesHandler extends ListActivity implements DeletionReceiver {
     private static final String TAG = "MemorySettings";
+    private static final int DLG_DELETING = 1;
     private String mNumSelectedFormat;
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private StorageMeasurement mMeasurement;
+    private ProgressDialog mDeletingDialog;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,6 +68,10 @@ public class MiscFilesHandler extends ListActivity {
         setTitle(R.string.misc_files);
         mNumSelectedFormat = getString(R.string.misc_files_selected_count);
         mNumBytesSelectedFormat = getString(R.string.misc_files_selected_count_bytes);
+        final StorageVolume storageVolume = getIntent().getParcelableExtra(
+                StorageVolume.EXTRA_STORAGE_VOLUME);
+        mMeasurement = StorageMeasurement.getInstance(this, storageVolume,
+                false /*Unused as a key*/);
         mAdapter = new MemoryMearurementAdapter(this);
         mInflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         setContentView(R.layout.settings_storage_miscfiles_list);
@@ -72,6 +82,63 @@ public class MiscFilesHandler extends ListActivity {
         setListAdapter(mAdapter);
     } 
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mMeasurement.setDeletionReceiver(this);
+        mAdapter.setData(mMeasurement.mFileInfoForMisc);
+        if (!mMeasurement.isDeleting()) {
+            // finished while we weren't listening
+            removeDialog(DLG_DELETING);
+            mDeletingDialog = null;
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // deletion carries on, and is picked up again by onResume()
+        mMeasurement.setDeletionReceiver(null);
+    }
+
+    @Override
+    protected Dialog onCreateDialog(int id) {
+        if (id == DLG_DELETING) {
+            mDeletingDialog = new ProgressDialog(this);
+            mDeletingDialog.setMessage(getString(R.string.misc_files_deleting,
+                    Formatter.formatFileSize(this, 0)));
+            mDeletingDialog.setCanceledOnTouchOutside(false);
+            mDeletingDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            mMeasurement.cancelDeletion();
+                        }
+                    });
+            mDeletingDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                public void onCancel(DialogInterface dialog) {
+                    mMeasurement.cancelDeletion();
+                }
+            });
+            return mDeletingDialog;
+        }
+        return super.onCreateDialog(id);
+    }
+
+    @Override
+    public void onDeletionProgress(long freedSize) {
+        if (mDeletingDialog != null) {
+            mDeletingDialog.setMessage(getString(R.string.misc_files_deleting,
+                    Formatter.formatFileSize(this, freedSize)));
+        }
+    }
+
+    @Override
+    public void onDeletionFinished(long freedSize) {
+        removeDialog(DLG_DELETING);
+        mDeletingDialog = null;
+        mAdapter.setData(mMeasurement.mFileInfoForMisc);
+    }
+
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
         private final Context mContext;
@@ -84,6 +151,8 @@ public class MiscFilesHandler extends ListActivity {
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
+            // list changes as deletions finish
+            mDataCount = mAdapter.getCount();
             return true;
         }
 
@@ -103,7 +172,7 @@ public class MiscFilesHandler extends ListActivity {
                             "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
                 }
                 if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
+                    ArrayList<FileInfo> toDelete = new ArrayList<FileInfo>();
                     for (int i = 0; i < mDataCount; i++) {
                         if (!checkedItems.get(i)) {
                             //item not selected
@@ -112,18 +181,12 @@ public class MiscFilesHandler extends ListActivity {
                         if (StorageMeasurement.LOGV) {
                             Log.i(TAG, "deleting: " + mAdapter.getItem(i));
                         }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
+                        toDelete.add(mAdapter.getItem(i));
+                    }
+                    // deleted in the background, list is updated once done
+                    if (mMeasurement.deleteMiscFiles(toDelete)) {
+                        showDialog(DLG_DELETING);
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
                 }
                 mode.finish();
                 break;
@@ -140,23 +203,6 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            if (dir.isDirectory()) {
-                String[] children = dir.list();
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
             // This block intentionally left blank
         }
@@ -191,17 +237,21 @@ public class MiscFilesHandler extends ListActivity {
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
-            final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
-                    StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = 
-                StorageMeasurement.getInstance(activity, storageVolume, false /*Unused as a key*/);
-            if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
+        }
+
+        /**
+         * Show the given files. The list is copied, since the measurement
+         * replaces it as files are deleted.
+         */
+        public void setData(List<StorageMeasurement.FileInfo> data) {
+            mData = data != null ? new ArrayList<StorageMeasurement.FileInfo>(data) : null;
+            mDataSize = 0;
             if (mData != null) {
                 for (StorageMeasurement.FileInfo info : mData) {
                     mDataSize += info.mSize;
                 }
             }
+            notifyDataSetChanged();
         }
 
         @Override
@@ -225,16 +275,6 @@ public class MiscFilesHandler extends ListActivity {
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
-            if (mData == null) {
-                return;
-            }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
-        }
-
         public long getDataSize() {
             return mDataSize;
         }
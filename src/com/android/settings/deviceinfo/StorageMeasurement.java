@@ -36,6 +36,12 @@ import android.os.storage.StorageVolume;
 import android.util.Log;
 
 import com.android.internal.app.IMediaContainerService;
+import com.android.settings.applications.PackageSizeCache;
+
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
@@ -79,8 +85,16 @@ public class StorageMeasurement {
 
     public static final String MEDIA_SIZES = "media_sizes";
 
+    /** Category of {@link MeasurementReceiver#updateCategory}, as in the preference. */
+    public static final String CATEGORY = "category";
+
+    public static final String CATEGORY_SIZE = "category_size";
+
     private static final String DEFAULT_CONTAINER_PACKAGE = "com.android.defcontainer";
 
+    /** Package size requests outstanding at once, so others aren't queued behind us. */
+    private static final int MAX_PACKAGES_IN_FLIGHT = 4;
+
     public static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             DEFAULT_CONTAINER_PACKAGE, "com.android.defcontainer.DefaultContainerService");
 
@@ -103,11 +117,42 @@ public class StorageMeasurement {
     final private boolean mIsPrimary;
     final private boolean mIsInternal;
 
-    List<FileInfo> mFileInfoForMisc;
+    volatile List<FileInfo> mFileInfoForMisc;
+
+    /** Walker sizing directories, if a walk is in progress. */
+    private volatile DirectoryWalker mWalker;
+    /** Incremented by {@link #cleanUp()}, so that a walk about to start knows. */
+    private volatile int mCleanUpGeneration;
+    /** Incremented by each complete measurement. */
+    private volatile int mCompletedMeasurements;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Deletion of misc files in progress, if any. Main thread only. */
+    private FileDeleter mDeleter;
+    private DeletionReceiver mDeletionReceiver;
 
     public interface MeasurementReceiver {
         public void updateApproximate(Bundle bundle);
         public void updateExact(Bundle bundle);
+        /**
+         * Partial {@link #APPS_USED} or {@link #MISC_SIZE} while that
+         * category is still being measured.
+         */
+        public void updatePartial(Bundle bundle);
+        /**
+         * Final {@link #CATEGORY_SIZE} of one {@link #CATEGORY}, as soon as
+         * it's measured, ahead of {@link #updateExact}.
+         */
+        public void updateCategory(Bundle bundle);
+    }
+
+    /**
+     * Receives progress of {@link #deleteMiscFiles}, on the main thread.
+     */
+    public interface DeletionReceiver {
+        public void onDeletionProgress(long freedSize);
+        /** Called once deleted files are gone from {@link #mFileInfoForMisc}. */
+        public void onDeletionFinished(long freedSize);
     }
 
     private StorageMeasurement(Context context, StorageVolume storageVolume, boolean isPrimary) {
@@ -160,6 +205,12 @@ public class StorageMeasurement {
 
     public void cleanUp() {
         mReceiver = null;
+        mCleanUpGeneration++;
+        final DirectoryWalker walker = mWalker;
+        if (walker != null) {
+            // measuring thread gives up, and measures again on next measure()
+            walker.cancel();
+        }
         mHandler.removeMessages(MeasurementHandler.MSG_MEASURE);
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
@@ -168,6 +219,65 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Delete the given misc files in the background, adjusting the last
+     * measurement by the space freed instead of measuring again. Only one
+     * deletion can be in progress, and it carries on without a receiver.
+     * Call on the main thread.
+     *
+     * @return {@code false} if a deletion is already in progress.
+     */
+    public boolean deleteMiscFiles(final List<FileInfo> files) {
+        if (mDeleter != null) {
+            return false;
+        }
+
+        final String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = files.get(i).mFileName;
+        }
+        final int measurement = mCompletedMeasurements;
+        mDeleter = new FileDeleter(paths, new FileDeleter.Listener() {
+            @Override
+            public void onProgress(final long freedSize) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDeletionReceiver != null) {
+                            mDeletionReceiver.onDeletionProgress(freedSize);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished(boolean[] deleted, long[] freedSizes) {
+                mHandler.sendMessage(mHandler.obtainMessage(MeasurementHandler.MSG_FILES_DELETED,
+                        new DeletionResult(files, deleted, freedSizes, measurement)));
+            }
+        });
+        mDeleter.start();
+        return true;
+    }
+
+    /**
+     * Stop deleting misc files, leaving those not yet deleted. Call on the
+     * main thread.
+     */
+    public void cancelDeletion() {
+        if (mDeleter != null) {
+            mDeleter.cancel();
+        }
+    }
+
+    public boolean isDeleting() {
+        return mDeleter != null;
+    }
+
+    public void setDeletionReceiver(DeletionReceiver receiver) {
+        mDeletionReceiver = receiver;
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -181,6 +291,35 @@ public class StorageMeasurement {
         receiver.updateApproximate(bundle);
     }
 
+    /**
+     * Send partial size of one category, given by its bundle key, while it's
+     * still being measured.
+     */
+    private void sendPartialUpdate(String key, long size) {
+        MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
+        if (receiver == null) {
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putLong(key, size);
+
+        receiver.updatePartial(bundle);
+    }
+
+    private void sendCategoryUpdate(int category, long size) {
+        MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
+        if (receiver == null) {
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(CATEGORY, category);
+        bundle.putLong(CATEGORY_SIZE, size);
+
+        receiver.updateCategory(bundle);
+    }
+
     private void sendExactUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -212,6 +351,10 @@ public class StorageMeasurement {
 
         public static final int MSG_INVALIDATE = 5;
 
+        public static final int MSG_APPS_MEASURED = 6;
+
+        public static final int MSG_FILES_DELETED = 7;
+
         private Object mLock = new Object();
 
         private IMediaContainerService mDefaultContainer;
@@ -222,6 +365,13 @@ public class StorageMeasurement {
 
         private StatsObserver mStatsObserver;
 
+        /** Parts of the measurement in progress that are done, on this thread only. */
+        private boolean mAppsMeasured;
+        private boolean mDirectoriesMeasured;
+
+        /** Results of the last complete measurement, loaded on first use. */
+        private StorageMeasurementCache mCache;
+
         private final WeakReference<Context> mContext;
 
         final private ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -273,7 +423,8 @@ public class StorageMeasurement {
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
-                    measureExactStorage(imcs);
+                    sendCachedUpdate();
+                    measureExactStorage();
                     break;
                 }
                 case MSG_DISCONNECT: {
@@ -292,74 +443,182 @@ public class StorageMeasurement {
                 }
                 case MSG_COMPLETED: {
                     mMeasured = true;
+                    mCompletedMeasurements++;
                     sendExactUpdate();
+                    if (mCache != null) {
+                        mCache.commitUpdate(mTotalSize, mAvailSize, mAppsSize, mDownloadsSize,
+                                mMiscSize, mMediaSizes, mFileInfoForMisc);
+                    }
                     break;
                 }
                 case MSG_INVALIDATE: {
                     mMeasured = false;
                     break;
                 }
+                case MSG_FILES_DELETED: {
+                    onFilesDeleted((DeletionResult) msg.obj);
+                    break;
+                }
+                case MSG_APPS_MEASURED: {
+                    if (msg.obj != mStatsObserver) {
+                        // from a measurement given up by cleanUp()
+                        break;
+                    }
+                    mAppsMeasured = true;
+                    if (mDirectoriesMeasured) {
+                        onInternalMeasurementComplete();
+                    }
+                    break;
+                }
             }
         }
 
         /**
-         * Request measurement of each package.
-         *
-         * @param pm PackageManager instance to query
+         * Measures size of a list of packages, keeping at most
+         * {@link #MAX_PACKAGES_IN_FLIGHT} requests outstanding at a time, and
+         * reporting partial totals as results arrive. Packages measured
+         * moments ago, such as by Manage Applications, aren't measured
+         * again.
          */
-        public void requestQueuedMeasurementsLocked(PackageManager pm) {
-            final String[] appsList = mStatsObserver.getAppsList();
-            final int N = appsList.length;
-            for (int i = 0; i < N; i++) {
-                pm.getPackageSizeInfo(appsList[i], mStatsObserver);
-            }
-        }
-
         private class StatsObserver extends IPackageStatsObserver.Stub {
+            private final PackageManager mPm;
+            private final String[] mPackages;
+            private final int mGeneration;
+
+            // all fields below guarded by this
+            private int mNextPackage;
+            private int mInFlight;
+            private int mRemaining;
+            private boolean mFinished;
             private long mAppsSizeForThisStatsObserver = 0;
-            private final List<String> mAppsList = new ArrayList<String>();
+
+            public StatsObserver(PackageManager pm, String[] packages, int generation) {
+                mPm = pm;
+                mPackages = packages;
+                mGeneration = generation;
+                mRemaining = packages.length;
+            }
+
+            public void start() {
+                requestNext();
+            }
 
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
-                if (!mStatsObserver.equals(this)) {
+                if (!this.equals(mStatsObserver)) {
                     // this callback's class object is no longer in use. ignore this callback.
                     return;
                 }
 
                 if (succeeded) {
-                    if (mIsInternal) {
-                        mAppsSizeForThisStatsObserver += stats.codeSize + stats.dataSize;
-                    } else if (!Environment.isExternalStorageEmulated()) {
-                        mAppsSizeForThisStatsObserver += stats.externalObbSize +
-                                stats.externalCodeSize + stats.externalDataSize +
-                                stats.externalCacheSize + stats.externalMediaSize;
+                    PackageSizeCache.put(stats);
+                }
+                synchronized (this) {
+                    mInFlight--;
+                    mRemaining--;
+                    if (succeeded) {
+                        mAppsSizeForThisStatsObserver += getAppSize(stats);
+                    }
+                }
+                requestNext();
+            }
+
+            /**
+             * Count cached packages and request more until the window is full.
+             * Requests are issued outside the lock, so results arriving early
+             * can't deadlock with us.
+             */
+            private void requestNext() {
+                final ArrayList<String> toRequest = new ArrayList<String>(MAX_PACKAGES_IN_FLIGHT);
+                synchronized (this) {
+                    // the last two results may arrive together; only one reports
+                    if (mFinished) return;
+
+                    // stop asking once nobody is watching; next measure() starts over
+                    if (mGeneration == mCleanUpGeneration) {
+                        while (mInFlight < MAX_PACKAGES_IN_FLIGHT
+                                && mNextPackage < mPackages.length) {
+                            final String packageName = mPackages[mNextPackage++];
+                            final PackageStats cached = PackageSizeCache.get(packageName);
+                            if (cached != null) {
+                                mAppsSizeForThisStatsObserver += getAppSize(cached);
+                                mRemaining--;
+                            } else {
+                                mInFlight++;
+                                toRequest.add(packageName);
+                            }
+                        }
+                    }
+
+                    // updates are only posted, so they're sent under the lock
+                    // to reach the UI in order: no partial after the total.
+                    final long partialSize = mAppsSizeForThisStatsObserver;
+                    if (mRemaining == 0) {
+                        mFinished = true;
+                        mAppsSize = partialSize;
+                        sendCategoryUpdate(StorageVolumePreferenceCategory.APPLICATIONS,
+                                partialSize);
+                        sendMessage(obtainMessage(MSG_APPS_MEASURED, this));
                     } else {
-                        mAppsSizeForThisStatsObserver += stats.codeSize + stats.dataSize +
-                                stats.externalCodeSize + stats.externalDataSize +
-                                stats.externalCacheSize + stats.externalMediaSize +
-                                stats.externalObbSize;
+                        sendPartialUpdate(APPS_USED, partialSize);
                     }
                 }
 
-                synchronized (mAppsList) {
-                    mAppsList.remove(stats.packageName);
-                    if (mAppsList.size() > 0) return;
+                for (int i = 0; i < toRequest.size(); i++) {
+                    mPm.getPackageSizeInfo(toRequest.get(i), this);
                 }
+            }
+        }
 
-                mAppsSize = mAppsSizeForThisStatsObserver;
-                onInternalMeasurementComplete();
+        private long getAppSize(PackageStats stats) {
+            if (mIsInternal) {
+                return stats.codeSize + stats.dataSize;
+            } else if (!Environment.isExternalStorageEmulated()) {
+                return stats.externalObbSize + stats.externalCodeSize + stats.externalDataSize
+                        + stats.externalCacheSize + stats.externalMediaSize;
+            } else {
+                return stats.codeSize + stats.dataSize + stats.externalCodeSize
+                        + stats.externalDataSize + stats.externalCacheSize
+                        + stats.externalMediaSize + stats.externalObbSize;
             }
+        }
 
-            public void queuePackageMeasurementLocked(String packageName) {
-                synchronized (mAppsList) {
-                    mAppsList.add(packageName);
+        private void onFilesDeleted(DeletionResult result) {
+            final ArrayList<FileInfo> fileInfos = mFileInfoForMisc != null
+                    ? new ArrayList<FileInfo>(mFileInfoForMisc) : new ArrayList<FileInfo>();
+            long freedSize = 0;
+            for (int i = 0; i < result.mFiles.size(); i++) {
+                final FileInfo info = result.mFiles.get(i);
+                freedSize += result.mFreedSizes[i];
+                // a newer measurement doesn't list the same object
+                if (fileInfos.remove(info) && !result.mDeleted[i]) {
+                    fileInfos.add(new FileInfo(info.mFileName,
+                            Math.max(0, info.mSize - result.mFreedSizes[i]), info.mId));
                 }
             }
+            Collections.sort(fileInfos);
+            mFileInfoForMisc = fileInfos;
 
-            public String[] getAppsList() {
-                synchronized (mAppsList) {
-                    return mAppsList.toArray(new String[mAppsList.size()]);
+            if (result.mMeasurement == mCompletedMeasurements) {
+                mMiscSize = Math.max(0, mMiscSize - freedSize);
+                mAvailSize = Math.min(mTotalSize, mAvailSize + freedSize);
+                if (mMeasured) {
+                    sendExactUpdate();
+                }
+                if (mCache != null && mCache.hasTotals()) {
+                    mCache.updateTotals(mAvailSize, mMiscSize, fileInfos);
                 }
             }
+
+            final long totalFreedSize = freedSize;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDeleter = null;
+                    if (mDeletionReceiver != null) {
+                        mDeletionReceiver.onDeletionFinished(totalFreedSize);
+                    }
+                }
+            });
         }
 
         private void onInternalMeasurementComplete() {
@@ -380,26 +639,102 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        /**
+         * Send totals of the last complete measurement, if any, so they can
+         * be shown while measuring again.
+         */
+        private void sendCachedUpdate() {
+            final StorageMeasurementCache cache = getCache();
+            if (cache == null || !cache.hasTotals()
+                    || cache.mMediaSizes.length != mMediaSizes.length) {
+                return;
+            }
+
+            // filesystem stats were just measured, and are more accurate
+            mAppsSize = cache.mAppsSize;
+            mDownloadsSize = cache.mDownloadsSize;
+            mMiscSize = cache.mMiscSize;
+            System.arraycopy(cache.mMediaSizes, 0, mMediaSizes, 0, mMediaSizes.length);
+            if (mFileInfoForMisc == null) {
+                mFileInfoForMisc = cache.mFileInfoForMisc;
+            }
+            sendExactUpdate();
+        }
+
+        private StorageMeasurementCache getCache() {
+            if (mCache == null) {
+                final Context context = mContext != null ? mContext.get() : null;
+                if (context == null) {
+                    return null;
+                }
+                mCache = StorageMeasurementCache.load(context,
+                        mStorageVolume != null ? mStorageVolume.getPath() : null);
+            }
+            return mCache;
+        }
+
+        private void measureExactStorage() {
             Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
+            final int generation = mCleanUpGeneration;
+            final StorageMeasurementCache cache = getCache();
+            if (cache != null) {
+                cache.beginUpdate();
+            }
+            mAppsMeasured = false;
+            mDirectoriesMeasured = false;
+
+            // Apps
+            // We have to get installd to measure the package sizes.
+            PackageManager pm = context.getPackageManager();
+            if (pm == null) {
+                return;
+            }
+            final List<ApplicationInfo> apps;
+            if (mIsPrimary || mIsInternal) {
+                apps = pm.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES |
+                        PackageManager.GET_DISABLED_COMPONENTS);
+            } else {
+                // TODO also measure apps installed on the SD card
+                apps = Collections.emptyList();
+            }
+
+            if (apps != null && apps.size() > 0) {
+                // initiate measurement of all package sizes. need new StatsObserver object.
+                final String[] packages = new String[apps.size()];
+                for (int i = 0; i < apps.size(); i++) {
+                    packages[i] = apps.get(i).packageName;
+                }
+                mStatsObserver = new StatsObserver(pm, packages, generation);
+                mStatsObserver.start();
+                // installd measures packages while we walk directories below,
+                // whichever finishes last completes the measurement
+            } else {
+                mAppsMeasured = true;
+            }
 
             // Media
             for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
                 if (mIsPrimary) {
-                    String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
-                    final int length = dirs.length;
+                    final long[] sizes = measureDirectories(
+                            StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths,
+                            generation, cache, null);
+                    if (sizes == null) {
+                        if (LOGV) Log.i(TAG, "media measurement cancelled");
+                        return;
+                    }
                     mMediaSizes[i] = 0;
-                    for (int d = 0; d < length; d++) {
-                        final String path = dirs[d];
-                        mMediaSizes[i] += getDirectorySize(imcs, path);
+                    for (long size : sizes) {
+                        mMediaSizes[i] += size;
                     }
                 } else {
                     // TODO Compute sizes using the MediaStore
                     mMediaSizes[i] = 0;
                 }
+                sendCategoryUpdate(StorageVolumePreferenceCategory.sMediaCategories[i].mCategory,
+                        mMediaSizes[i]);
             }
 
             /* Compute sizes using the media provider
@@ -436,57 +771,52 @@ public class StorageMeasurement {
             if (mIsPrimary) {
                 final String downloadsPath = Environment.getExternalStoragePublicDirectory(
                         Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-                mDownloadsSize = getDirectorySize(imcs, downloadsPath);
+                final long[] sizes = measureDirectories(new String[] { downloadsPath },
+                        generation, cache, null);
+                if (sizes == null) {
+                    if (LOGV) Log.i(TAG, "downloads measurement cancelled");
+                    return;
+                }
+                mDownloadsSize = sizes[0];
             } else {
                 mDownloadsSize = 0;
             }
+            sendCategoryUpdate(StorageVolumePreferenceCategory.DOWNLOADS, mDownloadsSize);
 
             // Misc
             mMiscSize = 0;
-            if (mIsPrimary) {
-                measureSizesOfMisc(imcs);
-            }
-
-            // Apps
-            // We have to get installd to measure the package sizes.
-            PackageManager pm = context.getPackageManager();
-            if (pm == null) {
+            if (mIsPrimary && !measureSizesOfMisc(generation, cache)) {
+                if (LOGV) Log.i(TAG, "misc measurement cancelled");
                 return;
             }
-            final List<ApplicationInfo> apps;
-            if (mIsPrimary || mIsInternal) {
-                apps = pm.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES |
-                        PackageManager.GET_DISABLED_COMPONENTS);
-            } else {
-                // TODO also measure apps installed on the SD card
-                apps = Collections.emptyList();
-            }
+            sendCategoryUpdate(StorageVolumePreferenceCategory.MISC, mMiscSize);
 
-            if (apps != null && apps.size() > 0) {
-                // initiate measurement of all package sizes. need new StatsObserver object.
-                mStatsObserver = new StatsObserver();
-                synchronized (mStatsObserver.mAppsList) {
-                    for (int i = 0; i < apps.size(); i++) {
-                        final ApplicationInfo info = apps.get(i);
-                        mStatsObserver.queuePackageMeasurementLocked(info.packageName);
-                    }
-                }
-
-                requestQueuedMeasurementsLocked(pm);
-                // Sending of the message back to the MeasurementReceiver is
-                // completed in the PackageObserver
-            } else {
+            mDirectoriesMeasured = true;
+            if (mAppsMeasured) {
                 onInternalMeasurementComplete();
             }
         }
     }
 
-    private long getDirectorySize(IMediaContainerService imcs, String dir) {
+    /**
+     * Measure size of each given directory, unless {@link #cleanUp()} is
+     * called first.
+     *
+     * @param generation value of {@link #mCleanUpGeneration} when measurement
+     *            started.
+     * @return size of each directory, or {@code null} if cancelled.
+     */
+    private long[] measureDirectories(String[] dirs, int generation,
+            StorageMeasurementCache cache, DirectoryWalker.Listener listener) {
+        final DirectoryWalker walker = new DirectoryWalker(listener, cache);
+        mWalker = walker;
+        if (generation != mCleanUpGeneration) {
+            walker.cancel();
+        }
         try {
-            return imcs.calculateDirectorySize(dir);
-        } catch (Exception e) {
-            Log.w(TAG, "Could not read memory from default container service for " + dir, e);
-            return 0;
+            return walker.measure(dirs);
+        } finally {
+            mWalker = null;
         }
     }
 
@@ -494,33 +824,92 @@ public class StorageMeasurement {
         return mMiscSize;
     }
 
-    private void measureSizesOfMisc(IMediaContainerService imcs) {
-        File top = new File(mStorageVolume.getPath());
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-        File[] files = top.listFiles();
-        if (files == null) return;
-        final int len = files.length;
+    /**
+     * Measure top level files and directories of the volume that aren't
+     * accounted for by other categories, reporting partial totals as
+     * directories are walked.
+     *
+     * @param generation value of {@link #mCleanUpGeneration} when measurement
+     *            started.
+     * @return {@code false} if measurement was cancelled by {@link #cleanUp()}.
+     */
+    private boolean measureSizesOfMisc(int generation, StorageMeasurementCache cache) {
+        final String top = new File(mStorageVolume.getPath()).getAbsolutePath();
+        final String[] names = new File(top).list();
+        if (names == null) {
+            mFileInfoForMisc = new ArrayList<FileInfo>();
+            return true;
+        }
+
         // Get sizes of all top level nodes except the ones already computed...
-        long counter = 0;
-        for (int i = 0; i < len; i++) {
-            String path = files[i].getAbsolutePath();
+        final ArrayList<String> paths = new ArrayList<String>(names.length);
+        final ArrayList<String> dirs = new ArrayList<String>();
+        final long[] fileSizes = new long[names.length];
+        long filesSize = 0;
+        for (String name : names) {
+            final String path = top + "/" + name;
             if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
                 continue;
             }
-            if (files[i].isFile()) {
-                final long fileSize = files[i].length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                mMiscSize += fileSize;
-            } else if (files[i].isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, path);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                mMiscSize += dirSize;
+            final StructStat stat;
+            try {
+                stat = Libcore.os.stat(path);
+            } catch (ErrnoException e) {
+                continue;
+            }
+            if (OsConstants.S_ISREG(stat.st_mode)) {
+                fileSizes[paths.size()] = stat.st_size;
+                filesSize += stat.st_size;
+            } else if (OsConstants.S_ISDIR(stat.st_mode)) {
+                fileSizes[paths.size()] = -1;
+                dirs.add(path);
             } else {
                 // Non directory, non file: not listed
+                continue;
             }
+            paths.add(path);
+        }
+
+        final long topFilesSize = filesSize;
+        final long[] dirSizes = measureDirectories(dirs.toArray(new String[dirs.size()]),
+                generation, cache, new DirectoryWalker.Listener() {
+                    @Override
+                    public void onProgress(long partialSize) {
+                        sendPartialUpdate(MISC_SIZE, topFilesSize + partialSize);
+                    }
+                });
+        if (dirSizes == null) {
+            return false;
+        }
+
+        final ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(paths.size());
+        long counter = 0;
+        int dir = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            final long size = fileSizes[i] >= 0 ? fileSizes[i] : dirSizes[dir++];
+            fileInfos.add(new FileInfo(paths.get(i), size, counter++));
+            mMiscSize += size;
         }
         // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        Collections.sort(fileInfos);
+        mFileInfoForMisc = fileInfos;
+        return true;
+    }
+
+    private static class DeletionResult {
+        final List<FileInfo> mFiles;
+        final boolean[] mDeleted;
+        final long[] mFreedSizes;
+        /** Value of {@link #mCompletedMeasurements} when deletion started. */
+        final int mMeasurement;
+
+        DeletionResult(List<FileInfo> files, boolean[] deleted, long[] freedSizes,
+                int measurement) {
+            mFiles = files;
+            mDeleted = deleted;
+            mFreedSizes = freedSizes;
+            mMeasurement = measurement;
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
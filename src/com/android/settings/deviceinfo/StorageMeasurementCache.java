@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.internal.os.AtomicFile;
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import libcore.io.IoUtils;
+import libcore.io.StructStat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent results of {@link StorageMeasurement} for one volume: category
+ * totals from the last complete measurement, so they can be shown before
+ * measuring again, and the size of each directory walked, so that
+ * {@link DirectoryWalker} can skip directories that haven't changed.
+ * <p>
+ * A directory is considered unchanged while its inode, link count and
+ * modification time are. That catches entries being added, removed or
+ * renamed, but not a file growing in place, so each directory entry is
+ * dropped once {@link #MAX_DIRECTORY_AGE_MS} have passed since it was last
+ * actually listed, however often it was reused in between.
+ */
+class StorageMeasurementCache {
+    private static final String TAG = "StorageMeasurementCache";
+
+    private static final String CACHE_DIR = "storage_measurement";
+
+    private static final int VERSION = 2;
+
+    private static final long MAX_DIRECTORY_AGE_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Directories modified this recently may still be changing within the
+     * same second of modification time, and aren't cached.
+     */
+    private static final long SETTLE_TIME_SECONDS = 2;
+
+    /**
+     * Files modified this recently may still be growing, such as a download
+     * or recording in progress, without touching their directory. Their
+     * directory isn't cached.
+     */
+    private static final long CHILD_SETTLE_TIME_SECONDS = 60 * 60;
+
+    static class DirectoryEntry {
+        final long mIno;
+        final long mNlink;
+        final long mMtime;
+        /** Blocks of entries directly inside this directory, in bytes. */
+        final long mSize;
+        final String[] mSubdirs;
+        /** When the directory was listed, in {@link System#currentTimeMillis()}. */
+        final long mMeasuredTime;
+
+        DirectoryEntry(StructStat stat, long size, String[] subdirs) {
+            this(stat.st_ino, stat.st_nlink, stat.st_mtime, size, subdirs,
+                    System.currentTimeMillis());
+        }
+
+        DirectoryEntry(long ino, long nlink, long mtime, long size, String[] subdirs,
+                long measuredTime) {
+            mIno = ino;
+            mNlink = nlink;
+            mMtime = mtime;
+            mSize = size;
+            mSubdirs = subdirs;
+            mMeasuredTime = measuredTime;
+        }
+
+        boolean matches(StructStat stat) {
+            return mIno == stat.st_ino && mNlink == stat.st_nlink && mMtime == stat.st_mtime;
+        }
+
+        boolean isExpired(long now) {
+            final long age = now - mMeasuredTime;
+            return age < 0 || age > MAX_DIRECTORY_AGE_MS;
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    /** Entries from the last complete measurement. Read only once loaded. */
+    private Map<String, DirectoryEntry> mDirectories = new HashMap<String, DirectoryEntry>();
+    /** Entries seen by the measurement in progress. */
+    private final ConcurrentHashMap<String, DirectoryEntry> mUpdated =
+            new ConcurrentHashMap<String, DirectoryEntry>();
+
+    private boolean mHasTotals;
+    long mTotalSize;
+    long mAvailSize;
+    long mAppsSize;
+    long mDownloadsSize;
+    long mMiscSize;
+    long[] mMediaSizes;
+    List<FileInfo> mFileInfoForMisc;
+
+    private StorageMeasurementCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Load cache of the given volume, or return an empty cache if none was
+     * saved or it can't be read. Performs disk I/O.
+     *
+     * @param volumePath path of the volume, or {@code null} for internal storage.
+     */
+    static StorageMeasurementCache load(Context context, String volumePath) {
+        final String name = volumePath != null ? volumePath.replace('/', '_') : "internal";
+        final File dir = new File(context.getFilesDir(), CACHE_DIR);
+        final StorageMeasurementCache cache = new StorageMeasurementCache(new File(dir, name));
+        try {
+            cache.read();
+        } catch (FileNotFoundException e) {
+            // nothing measured yet
+        } catch (IOException e) {
+            Log.w(TAG, "problem reading cache for " + name, e);
+            cache.mHasTotals = false;
+            cache.mDirectories = new HashMap<String, DirectoryEntry>();
+        }
+        return cache;
+    }
+
+    /**
+     * Return {@code true} if the given directory, and every entry directly
+     * inside it, has been left alone long enough to be cached.
+     *
+     * @param newestChildMtime latest {@code st_mtime} of entries inside it.
+     */
+    static boolean isSettled(StructStat dirStat, long newestChildMtime) {
+        final long now = System.currentTimeMillis() / 1000;
+        return dirStat.st_mtime < now - SETTLE_TIME_SECONDS
+                && newestChildMtime < now - CHILD_SETTLE_TIME_SECONDS;
+    }
+
+    boolean hasTotals() {
+        return mHasTotals;
+    }
+
+    /**
+     * Return entry of the given directory from the last complete
+     * measurement, or {@code null} if there is none or it's too old to be
+     * trusted. Safe to call from any thread.
+     */
+    DirectoryEntry getDirectory(String path) {
+        final DirectoryEntry entry = mDirectories.get(path);
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Record entry of the given directory for the measurement in progress.
+     * An entry reused from {@link #getDirectory} keeps the time it was
+     * measured. Safe to call from any thread.
+     */
+    void putDirectory(String path, DirectoryEntry entry) {
+        mUpdated.put(path, entry);
+    }
+
+    /**
+     * Forget directories recorded by a measurement that didn't complete.
+     */
+    void beginUpdate() {
+        mUpdated.clear();
+    }
+
+    /**
+     * Replace totals and directories with those of the measurement just
+     * completed, and save them. Directories not walked by that measurement
+     * are dropped. Performs disk I/O.
+     */
+    void commitUpdate(long totalSize, long availSize, long appsSize, long downloadsSize,
+            long miscSize, long[] mediaSizes, List<FileInfo> fileInfoForMisc) {
+        mHasTotals = true;
+        mTotalSize = totalSize;
+        mAvailSize = availSize;
+        mAppsSize = appsSize;
+        mDownloadsSize = downloadsSize;
+        mMiscSize = miscSize;
+        mMediaSizes = mediaSizes.clone();
+        mFileInfoForMisc = fileInfoForMisc != null ? fileInfoForMisc
+                : Collections.<FileInfo>emptyList();
+        mDirectories = new HashMap<String, DirectoryEntry>(mUpdated);
+        mUpdated.clear();
+
+        try {
+            write();
+        } catch (IOException e) {
+            Log.w(TAG, "problem writing cache", e);
+        }
+    }
+
+    /**
+     * Replace totals changed since the last measurement, such as by deleting
+     * misc files, and save them. Directories are kept, those deleted are
+     * skipped by the next walk. Performs disk I/O.
+     */
+    void updateTotals(long availSize, long miscSize, List<FileInfo> fileInfoForMisc) {
+        mAvailSize = availSize;
+        mMiscSize = miscSize;
+        mFileInfoForMisc = fileInfoForMisc;
+
+        try {
+            write();
+        } catch (IOException e) {
+            Log.w(TAG, "problem writing cache", e);
+        }
+    }
+
+    private void read() throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()));
+        try {
+            if (in.readInt() != VERSION) return;
+
+            mTotalSize = in.readLong();
+            mAvailSize = in.readLong();
+            mAppsSize = in.readLong();
+            mDownloadsSize = in.readLong();
+            mMiscSize = in.readLong();
+            mMediaSizes = new long[in.readInt()];
+            for (int i = 0; i < mMediaSizes.length; i++) {
+                mMediaSizes[i] = in.readLong();
+            }
+            final int fileCount = in.readInt();
+            final ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                fileInfos.add(new FileInfo(in.readUTF(), in.readLong(), i));
+            }
+            mFileInfoForMisc = fileInfos;
+            mHasTotals = true;
+
+            final long now = System.currentTimeMillis();
+            final int dirCount = in.readInt();
+            final HashMap<String, DirectoryEntry> dirs = new HashMap<String, DirectoryEntry>(
+                    dirCount);
+            for (int i = 0; i < dirCount; i++) {
+                final String path = in.readUTF();
+                final long ino = in.readLong();
+                final long nlink = in.readLong();
+                final long mtime = in.readLong();
+                final long size = in.readLong();
+                final long measuredTime = in.readLong();
+                final String[] subdirs = new String[in.readInt()];
+                for (int j = 0; j < subdirs.length; j++) {
+                    subdirs[j] = in.readUTF();
+                }
+                final DirectoryEntry dir = new DirectoryEntry(ino, nlink, mtime, size, subdirs,
+                        measuredTime);
+                if (!dir.isExpired(now)) {
+                    dirs.put(path, dir);
+                }
+            }
+            mDirectories = dirs;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void write() throws IOException {
+        mFile.getBaseFile().getParentFile().mkdirs();
+
+        final FileOutputStream rawOut = mFile.startWrite();
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+            out.writeInt(VERSION);
+
+            out.writeLong(mTotalSize);
+            out.writeLong(mAvailSize);
+            out.writeLong(mAppsSize);
+            out.writeLong(mDownloadsSize);
+            out.writeLong(mMiscSize);
+            out.writeInt(mMediaSizes.length);
+            for (long size : mMediaSizes) {
+                out.writeLong(size);
+            }
+            out.writeInt(mFileInfoForMisc.size());
+            for (FileInfo info : mFileInfoForMisc) {
+                out.writeUTF(info.mFileName);
+                out.writeLong(info.mSize);
+            }
+
+            out.writeInt(mDirectories.size());
+            for (Map.Entry<String, DirectoryEntry> entry : mDirectories.entrySet()) {
+                final DirectoryEntry dir = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(dir.mIno);
+                out.writeLong(dir.mNlink);
+                out.writeLong(dir.mMtime);
+                out.writeLong(dir.mSize);
+                out.writeLong(dir.mMeasuredTime);
+                out.writeInt(dir.mSubdirs.length);
+                for (String subdir : dir.mSubdirs) {
+                    out.writeUTF(subdir);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(rawOut);
+        } catch (IOException e) {
+            mFile.failWrite(rawOut);
+            throw e;
+        }
+    }
+}
@@ -59,6 +59,9 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     private Preference mStorageLow;
     private int[] mColors;
 
+    /** Last size of each category, or -1 until first measured. */
+    private long[] mSizes;
+
     private Resources mResources;
 
     private StorageVolume mStorageVolume;
@@ -133,6 +136,12 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     // Updates the memory usage bar graph.
     private static final int MSG_UI_UPDATE_EXACT = 2;
 
+    // Updates apps or misc size while it's still being measured.
+    private static final int MSG_UI_UPDATE_PARTIAL = 3;
+
+    // Updates one category as soon as it's measured.
+    private static final int MSG_UI_UPDATE_CATEGORY = 4;
+
     private Handler mUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -156,6 +165,24 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
                             mediaSizes);
                     break;
                 }
+                case MSG_UI_UPDATE_PARTIAL: {
+                    Bundle bundle = msg.getData();
+                    if (bundle.containsKey(StorageMeasurement.APPS_USED)) {
+                        updatePartial(APPLICATIONS,
+                                bundle.getLong(StorageMeasurement.APPS_USED));
+                    }
+                    if (bundle.containsKey(StorageMeasurement.MISC_SIZE)) {
+                        updatePartial(MISC, bundle.getLong(StorageMeasurement.MISC_SIZE));
+                    }
+                    break;
+                }
+                case MSG_UI_UPDATE_CATEGORY: {
+                    Bundle bundle = msg.getData();
+                    final int category = bundle.getInt(StorageMeasurement.CATEGORY);
+                    final long size = bundle.getLong(StorageMeasurement.CATEGORY_SIZE);
+                    updateCategory(category, size);
+                    break;
+                }
             }
         }
     };
@@ -187,11 +214,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         final int numberOfCategories = sCategoryInfos.length;
         mPreferences = new Preference[numberOfCategories];
         mColors = new int[numberOfCategories];
+        mSizes = new long[numberOfCategories];
         for (int i = 0; i < numberOfCategories; i++) {
             final Preference preference = new Preference(getContext());
             mPreferences[i] = preference;
             preference.setTitle(sCategoryInfos[i].mTitle);
             preference.setSummary(R.string.memory_calculating_size);
+            mSizes[i] = -1;
             if (i != TOTAL_SIZE) {
                 // TOTAL_SIZE has no associated color
                 mColors[i] = mResources.getColor(sCategoryInfos[i].mColor);
@@ -344,58 +373,94 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     public void updateApproximate(long totalSize, long availSize) {
         mPreferences[TOTAL_SIZE].setSummary(formatSize(totalSize));
         mPreferences[AVAILABLE].setSummary(formatSize(availSize));
+        mSizes[TOTAL_SIZE] = totalSize;
+        mSizes[AVAILABLE] = availSize;
 
-        final long usedSize = totalSize - availSize;
-
-        mUsageBarPreference.clear();
-        mUsageBarPreference.addEntry(usedSize / (float) totalSize, android.graphics.Color.GRAY);
-        mUsageBarPreference.commit();
+        updateUsageBar();
 
         updatePreferencesFromState();
     }
 
     public void updateExact(long totalSize, long availSize, long appsSize, long downloadsSize,
             long miscSize, long[] mediaSizes) {
-        mUsageBarPreference.clear();
-
         mPreferences[TOTAL_SIZE].setSummary(formatSize(totalSize));
+        mSizes[TOTAL_SIZE] = totalSize;
 
-        if (mMeasurement.isExternalSDCard()) {
-            // TODO FIXME: external SD card will not report any size. Show used space in bar graph
-            final long usedSize = totalSize - availSize;
-            mUsageBarPreference.addEntry(usedSize / (float) totalSize, android.graphics.Color.GRAY);
-        }
-
-        updatePreference(appsSize, totalSize, APPLICATIONS);
+        updatePreference(appsSize, APPLICATIONS);
 
-        long totalMediaSize = 0;
         for (int i = 0; i < sMediaCategories.length; i++) {
-            final int category = sMediaCategories[i].mCategory;
-            final long size = mediaSizes[i];
-            updatePreference(size, totalSize, category);
-            totalMediaSize += size;
+            updatePreference(mediaSizes[i], sMediaCategories[i].mCategory);
         }
 
-        updatePreference(downloadsSize, totalSize, DOWNLOADS);
+        updatePreference(downloadsSize, DOWNLOADS);
 
         // Note miscSize != totalSize - availSize - appsSize - downloadsSize - totalMediaSize
         // Block size is taken into account. That can be extra space from folders. TODO Investigate
-        updatePreference(miscSize, totalSize, MISC);
+        updatePreference(miscSize, MISC);
 
-        updatePreference(availSize, totalSize, AVAILABLE);
+        updatePreference(availSize, AVAILABLE);
 
-        mUsageBarPreference.commit();
+        updateUsageBar();
+    }
+
+    /**
+     * Show final size of one category while others are still being measured.
+     */
+    public void updateCategory(int category, long size) {
+        updatePreference(size, category);
+        updateUsageBar();
     }
 
-    private void updatePreference(long size, long totalSize, int category) {
+    public void updatePartial(int category, long size) {
+        mPreferences[category].setSummary(mResources.getString(
+                R.string.memory_calculating_partial_size, formatSize(size)));
+    }
+
+    private void updatePreference(long size, int category) {
+        mSizes[category] = size;
         if (size > 0) {
             mPreferences[category].setSummary(formatSize(size));
-            mUsageBarPreference.addEntry(size / (float) totalSize, mColors[category]);
         } else {
             removePreference(mPreferences[category]);
         }
     }
 
+    /**
+     * Rebuild the bar graph from every category measured so far, in the
+     * order of the list. Used space not yet attributed to a category is
+     * shown in gray.
+     */
+    private void updateUsageBar() {
+        mUsageBarPreference.clear();
+
+        final long totalSize = mSizes[TOTAL_SIZE];
+        final long availSize = mSizes[AVAILABLE];
+        if (totalSize > 0 && availSize >= 0) {
+            long unattributedSize = totalSize - availSize;
+            boolean measured = !mMeasurement.isExternalSDCard();
+            for (int i = APPLICATIONS; i < AVAILABLE; i++) {
+                if (mSizes[i] < 0) {
+                    measured = false;
+                } else if (mSizes[i] > 0) {
+                    mUsageBarPreference.addEntry(mSizes[i] / (float) totalSize, mColors[i]);
+                    unattributedSize -= mSizes[i];
+                }
+            }
+
+            // TODO FIXME: external SD card will not report any size. Show used space in bar graph
+            if (!measured && unattributedSize > 0) {
+                mUsageBarPreference.addEntry(unattributedSize / (float) totalSize,
+                        android.graphics.Color.GRAY);
+            }
+
+            if (availSize > 0) {
+                mUsageBarPreference.addEntry(availSize / (float) totalSize, mColors[AVAILABLE]);
+            }
+        }
+
+        mUsageBarPreference.commit();
+    }
+
     private void measure() {
         mMeasurement.invalidate();
         mMeasurement.measure();
@@ -444,6 +509,20 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUpdateHandler.sendMessage(message);
     }
 
+    @Override
+    public void updatePartial(Bundle bundle) {
+        final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_PARTIAL);
+        message.setData(bundle);
+        mUpdateHandler.sendMessage(message);
+    }
+
+    @Override
+    public void updateCategory(Bundle bundle) {
+        final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_CATEGORY);
+        message.setData(bundle);
+        mUpdateHandler.sendMessage(message);
+    }
+
     public boolean mountToggleClicked(Preference preference) {
         return preference == mMountTogglePreference;
     }
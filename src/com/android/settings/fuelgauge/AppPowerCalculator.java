@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.AsyncTask;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.os.PowerProfile;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-UID power model behind {@link PowerUsageSummary}, covering CPU, partial
+ * wakelock, data, Wi-Fi and sensor usage of every {@link Uid} in a
+ * {@link BatteryStats}.
+ * <p>
+ * UIDs are split into ranges which are claimed by pooled threads and the
+ * calling thread alike, so the caller never waits on work that hasn't
+ * started. Results are written into primitive arrays indexed by position in
+ * {@link BatteryStats#getUidStats()}, which are reused across calls along with
+ * per-thread scratch space. Each UID is computed exactly as a sequential pass
+ * would, and folding results into totals is left to the caller in UID order,
+ * so output doesn't depend on how ranges were scheduled.
+ */
+public class AppPowerCalculator {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "AppPowerCalculator";
+
+    /** Smallest range worth handing to another thread. */
+    private static final int MIN_UIDS_PER_RANGE = 8;
+    private static final int MAX_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Per-UID results of {@link AppPowerCalculator#compute}, valid until the
+     * next call.
+     */
+    public static class Result {
+        public int count;
+
+        public double[] power;
+        public String[] packageWithHighestDrain;
+        public long[] cpuTime;
+        public long[] cpuFgTime;
+        public long[] wakeLockTime;
+        public long[] gpsTime;
+        public long[] wifiRunningTime;
+        public long[] tcpBytesReceived;
+        public long[] tcpBytesSent;
+
+        void ensureCapacity(int size) {
+            count = size;
+            if (power != null && power.length >= size) return;
+
+            power = new double[size];
+            packageWithHighestDrain = new String[size];
+            cpuTime = new long[size];
+            cpuFgTime = new long[size];
+            wakeLockTime = new long[size];
+            gpsTime = new long[size];
+            wifiRunningTime = new long[size];
+            tcpBytesReceived = new long[size];
+            tcpBytesSent = new long[size];
+        }
+    }
+
+    private final SensorManager mSensorManager;
+
+    private final double[] mPowerCpuNormal;
+    private final double mPowerCpuAwake;
+    private final double mPowerWifiOn;
+    private final double mPowerGpsOn;
+
+    private final Result mResult = new Result();
+
+    /** Scratch {@code cpuSpeedStepTimes} for each participating thread. */
+    private final long[][] mScratch;
+
+    public AppPowerCalculator(Context context, PowerProfile powerProfile) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+
+        final int speedSteps = powerProfile.getNumSpeedSteps();
+        mPowerCpuNormal = new double[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            mPowerCpuNormal[p] = powerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        mPowerCpuAwake = powerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE);
+        mPowerWifiOn = powerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON);
+        mPowerGpsOn = powerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
+
+        mScratch = new long[MAX_PARALLELISM][speedSteps];
+    }
+
+    /**
+     * Compute power used by every {@link Uid} in the given stats, blocking
+     * until all ranges are finished. Not reentrant; the returned
+     * {@link Result} is reused by the next call.
+     */
+    public Result compute(BatteryStats stats, int which, long uSecTime,
+            double averageCostPerByte) {
+        final SparseArray<? extends Uid> uidStats = stats.getUidStats();
+        final int count = uidStats.size();
+        mResult.ensureCapacity(count);
+
+        final int ranges = Math.max(1, Math.min(MAX_PARALLELISM, count / MIN_UIDS_PER_RANGE));
+        if (ranges == 1) {
+            computeRange(uidStats, 0, count, which, uSecTime, averageCostPerByte, mScratch[0]);
+            return mResult;
+        }
+
+        final RangeWorker worker = new RangeWorker(
+                uidStats, ranges, which, uSecTime, averageCostPerByte);
+        for (int i = 1; i < ranges; i++) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(worker);
+        }
+
+        // caller pitches in, then only waits on ranges already in progress
+        worker.run();
+        worker.await();
+        return mResult;
+    }
+
+    /**
+     * Claims ranges of UIDs until none are left. Runs on every participating
+     * thread, each with its own scratch space.
+     */
+    private class RangeWorker implements Runnable {
+        private final SparseArray<? extends Uid> mUidStats;
+        private final int mRanges;
+        private final int mWhich;
+        private final long mUSecTime;
+        private final double mAverageCostPerByte;
+
+        private final AtomicInteger mNextRange = new AtomicInteger();
+        private final AtomicInteger mNextScratch = new AtomicInteger();
+        private final CountDownLatch mFinished;
+
+        public RangeWorker(SparseArray<? extends Uid> uidStats, int ranges, int which,
+                long uSecTime, double averageCostPerByte) {
+            mUidStats = uidStats;
+            mRanges = ranges;
+            mWhich = which;
+            mUSecTime = uSecTime;
+            mAverageCostPerByte = averageCostPerByte;
+            mFinished = new CountDownLatch(ranges);
+        }
+
+        @Override
+        public void run() {
+            final long[] scratch = mScratch[mNextScratch.getAndIncrement()];
+            final int count = mUidStats.size();
+
+            int range;
+            while ((range = mNextRange.getAndIncrement()) < mRanges) {
+                final int start = (int) ((long) count * range / mRanges);
+                final int end = (int) ((long) count * (range + 1) / mRanges);
+                try {
+                    computeRange(mUidStats, start, end, mWhich, mUSecTime, mAverageCostPerByte,
+                            scratch);
+                } finally {
+                    mFinished.countDown();
+                }
+            }
+        }
+
+        public void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mFinished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void computeRange(SparseArray<? extends Uid> uidStats, int start, int end,
+            int which, long uSecTime, double averageCostPerByte, long[] cpuSpeedStepTimes) {
+        for (int iu = start; iu < end; iu++) {
+            computeUid(uidStats.valueAt(iu), iu, which, uSecTime, averageCostPerByte,
+                    cpuSpeedStepTimes);
+        }
+    }
+
+    /**
+     * Compute a single {@link Uid} into slot {@code index} of {@link #mResult}.
+     * Order of floating point operations must not change, so that totals
+     * match earlier releases exactly.
+     */
+    private void computeUid(Uid u, int index, int which, long uSecTime,
+            double averageCostPerByte, long[] cpuSpeedStepTimes) {
+        final double[] powerCpuNormal = mPowerCpuNormal;
+        final int speedSteps = powerCpuNormal.length;
+
+        double power = 0;
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        long cpuTime = 0;
+        long cpuFgTime = 0;
+        long wakelockTime = 0;
+        long gpsTime = 0;
+        if (processStats.size() > 0) {
+            // Process CPU time
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long foregroundTime = ps.getForegroundTime(which);
+                cpuFgTime += foregroundTime * 10; // convert to millis
+                final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                int totalTimeAtSpeeds = 0;
+                // Get the total first
+                for (int step = 0; step < speedSteps; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                // Then compute the ratio of time spent at each speed
+                double processPower = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                    processPower += ratio * tmpCpuTime * powerCpuNormal[step];
+                }
+                cpuTime += tmpCpuTime;
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+            if (DEBUG) Log.i(TAG, "Max drain of " + highestDrain
+                    + " by " + packageWithHighestDrain);
+        }
+        if (cpuFgTime > cpuTime) {
+            if (DEBUG && cpuFgTime > cpuTime + 10000) {
+                Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
+            }
+            cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+        }
+        power /= 1000;
+
+        // Process wake lock usage
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            Uid.Wakelock wakelock = wakelockEntry.getValue();
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        wakelockTime /= 1000; // convert to millis
+
+        // Add cost of holding a wake lock
+        power += (wakelockTime * mPowerCpuAwake) / 1000;
+
+        // Add cost of data traffic
+        long tcpBytesReceived = u.getTcpBytesReceived(which);
+        long tcpBytesSent = u.getTcpBytesSent(which);
+        power += (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
+
+        // Add cost of keeping WIFI running.
+        long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        power += (wifiRunningTimeMs * mPowerWifiOn) / 1000;
+
+        // Process Sensor usage
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            int sensorType = sensor.getHandle();
+            BatteryStats.Timer timer = sensor.getSensorTime();
+            long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = 0;
+            switch (sensorType) {
+                case Uid.Sensor.GPS:
+                    multiplier = mPowerGpsOn;
+                    gpsTime = sensorTime;
+                    break;
+                default:
+                    Sensor sensorData = mSensorManager.getDefaultSensor(sensorType);
+                    if (sensorData != null) {
+                        multiplier = sensorData.getPower();
+                    }
+            }
+            power += (multiplier * sensorTime) / 1000;
+        }
+
+        if (DEBUG) Log.i(TAG, "UID " + u.getUid() + ": power=" + power);
+
+        final Result result = mResult;
+        result.power[index] = power;
+        result.packageWithHighestDrain[index] = packageWithHighestDrain;
+        result.cpuTime[index] = cpuTime;
+        result.cpuFgTime[index] = cpuFgTime;
+        result.wakeLockTime[index] = wakelockTime;
+        result.gpsTime[index] = gpsTime;
+        result.wifiRunningTime[index] = wifiRunningTimeMs;
+        result.tcpBytesReceived[index] = tcpBytesReceived;
+        result.tcpBytesSent[index] = tcpBytesSent;
+    }
+}
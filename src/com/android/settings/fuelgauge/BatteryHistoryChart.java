@@ -21,6 +21,7 @@ import com.android.settings.R;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
@@ -34,6 +35,8 @@ import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
 
+import java.util.Arrays;
+
 public class BatteryHistoryChart extends View {
     static final int CHART_DATA_X_MASK = 0x0000ffff;
     static final int CHART_DATA_BIN_MASK = 0xffff0000;
@@ -98,6 +101,162 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Battery history aggregated into pixel columns: level extremes of
+     * records falling in each column, and how much of the time covered by
+     * each column every state was on.
+     */
+    static class HistoryColumns {
+        static final int STATE_CHARGING = 0;
+        static final int STATE_SCREEN_ON = 1;
+        static final int STATE_GPS_ON = 2;
+        static final int STATE_WIFI_RUNNING = 3;
+        static final int STATE_WAKE_LOCK = 4;
+
+        static final int[] STATE_FLAGS = new int[] {
+                HistoryItem.STATE_BATTERY_PLUGGED_FLAG,
+                HistoryItem.STATE_SCREEN_ON_FLAG,
+                HistoryItem.STATE_GPS_ON_FLAG,
+                HistoryItem.STATE_WIFI_RUNNING_FLAG,
+                HistoryItem.STATE_WAKE_LOCK_FLAG,
+        };
+
+        final int width;
+
+        final boolean[] hasLevel;
+        final byte[] firstLevel;
+        final byte[] lastLevel;
+        final byte[] minLevel;
+        final byte[] maxLevel;
+        /** Column holds last record before history was interrupted. */
+        final boolean[] segmentEnd;
+        /** Phone signal bin of last record in each column. */
+        final int[] phoneSignalBin;
+
+        /** Fraction of each column covered by history. */
+        final float[] coverage;
+        /** Fraction of each column that each state was on. */
+        final float[][] onTime;
+
+        // running deltas for columns spanned entirely, so spans cost O(1)
+        private final float[] mCoverageSteps;
+        private final float[][] mOnTimeSteps;
+
+        HistoryColumns(int width) {
+            this.width = width;
+            hasLevel = new boolean[width];
+            firstLevel = new byte[width];
+            lastLevel = new byte[width];
+            minLevel = new byte[width];
+            maxLevel = new byte[width];
+            segmentEnd = new boolean[width];
+            phoneSignalBin = new int[width];
+            coverage = new float[width];
+            onTime = new float[STATE_FLAGS.length][width];
+            mCoverageSteps = new float[width + 1];
+            mOnTimeSteps = new float[STATE_FLAGS.length][width + 1];
+        }
+
+        void aggregate(BatteryHistoryModel hist, long timeStart, long timeChange) {
+            Arrays.fill(hasLevel, false);
+            Arrays.fill(segmentEnd, false);
+            Arrays.fill(coverage, 0);
+            Arrays.fill(mCoverageSteps, 0);
+            for (int s = 0; s < STATE_FLAGS.length; s++) {
+                Arrays.fill(onTime[s], 0);
+                Arrays.fill(mOnTimeSteps[s], 0);
+            }
+            if (width <= 0) return;
+
+            final int N = hist.size;
+            for (int i = 0; i < N; i++) {
+                if (hist.types[i] != BatteryHistoryModel.TYPE_UPDATE) continue;
+
+                final float start = Math.min(toColumn(hist.times[i], timeStart, timeChange),
+                        width - 1);
+                final int x = (int) start;
+                final byte level = hist.levels[i];
+                if (!hasLevel[x]) {
+                    hasLevel[x] = true;
+                    firstLevel[x] = minLevel[x] = maxLevel[x] = level;
+                } else {
+                    if (level < minLevel[x]) minLevel[x] = level;
+                    if (level > maxLevel[x]) maxLevel[x] = level;
+                }
+                lastLevel[x] = level;
+
+                final int states = hist.states[i];
+                phoneSignalBin[x] = getPhoneSignalBin(states);
+
+                // state holds until next update, unless history breaks first
+                final float end;
+                if (i + 1 < N && hist.types[i + 1] == BatteryHistoryModel.TYPE_UPDATE) {
+                    end = Math.min(toColumn(hist.times[i + 1], timeStart, timeChange), width);
+                } else {
+                    end = x + 1;
+                    segmentEnd[x] = true;
+                }
+                if (end <= start) continue;
+
+                addSpan(coverage, mCoverageSteps, start, end);
+                for (int s = 0; s < STATE_FLAGS.length; s++) {
+                    if ((states & STATE_FLAGS[s]) != 0) {
+                        addSpan(onTime[s], mOnTimeSteps[s], start, end);
+                    }
+                }
+            }
+
+            applySteps(coverage, mCoverageSteps);
+            for (int s = 0; s < STATE_FLAGS.length; s++) {
+                applySteps(onTime[s], mOnTimeSteps[s]);
+            }
+        }
+
+        boolean isOn(int state, int x) {
+            return coverage[x] > 0 && onTime[state][x] * 2 >= coverage[x];
+        }
+
+        private float toColumn(long time, long timeStart, long timeChange) {
+            return (float) (((double) (time - timeStart) * width) / timeChange);
+        }
+
+        private static void addSpan(float[] columns, float[] steps, float start, float end) {
+            final int first = (int) start;
+            final int last = (int) end;
+            if (first == last) {
+                columns[first] += end - start;
+            } else {
+                columns[first] += first + 1 - start;
+                steps[first + 1] += 1;
+                steps[last] -= 1;
+                if (last < columns.length) {
+                    columns[last] += end - last;
+                }
+            }
+        }
+
+        private static void applySteps(float[] columns, float[] steps) {
+            float run = 0;
+            for (int x = 0; x < columns.length; x++) {
+                run += steps[x];
+                columns[x] += run;
+            }
+        }
+
+        private static int getPhoneSignalBin(int states) {
+            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                    == ServiceState.STATE_POWER_OFF) {
+                return 0;
+            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                return 1;
+            } else {
+                return ((states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                        >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT) + 2;
+            }
+        }
+    }
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -166,7 +325,7 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
     
-    int mNumHist;
+    BatteryHistoryModel mHistory;
     long mHistStart;
     long mHistEnd;
     int mBatLow;
@@ -174,6 +333,18 @@ public class BatteryHistoryChart extends View {
     boolean mHaveWifi;
     boolean mHaveGps;
     boolean mHavePhoneSignal;
+
+    boolean mPathsValid;
+
+    HistoryColumns mColumns;
+    int mLastLevelX;
+    int mLastLevelY;
+    int mLevelStartX;
+    Path mLastLinePath;
+
+    /** Everything drawn, valid for current size and {@link #mHistory}. */
+    Bitmap mCacheBitmap;
+    boolean mCacheValid;
     
     public BatteryHistoryChart(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -335,6 +506,8 @@ public class BatteryHistoryChart extends View {
     }
     
     void setStats(BatteryStats stats) {
+        // rebinding the same snapshot doesn't need new paths
+        if (stats == mStats) return;
         mStats = stats;
         
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
@@ -350,89 +523,96 @@ public class BatteryHistoryChart extends View {
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
         
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+        // decoded once, then scanned for every size we're laid out at
+        mHistory = BatteryHistoryModel.get(stats);
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
+        mHistStart = mHistory.histStart;
+        mHistEnd = mHistory.histEnd;
+        final int aggrStates = mHistory.aggrStates;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
-        if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart);
+
+        // stats may arrive after layout; labels need measuring again
+        mPathsValid = false;
+        requestLayout();
+        invalidate();
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        if (mStats == null) return;
         mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
         mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
         mTextAscent = (int)mTextPaint.ascent();
         mTextDescent = (int)mTextPaint.descent();
     }
 
-    void finishPaths(int w, int h, int levelh, int startX, int y, Path curLevelPath,
-            int lastX, boolean lastCharging, boolean lastScreenOn, boolean lastGpsOn,
-            boolean lastWifiRunning, boolean lastWakeLock, Path lastPath) {
-        if (curLevelPath != null) {
-            if (lastX >= 0 && lastX < w) {
-                if (lastPath != null) {
-                    lastPath.lineTo(w, y);
-                }
-                curLevelPath.lineTo(w, y);
+    /**
+     * Extend level path to the given point, switching between good, warn and
+     * critical line paths as the level crosses their thresholds.
+     */
+    void levelTo(int x, int y, byte value) {
+        if (x == mLastLevelX && y == mLastLevelY) return;
+
+        Path path;
+        if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
+        else if (value <= BATTERY_WARN) path = mBatWarnPath;
+        else path = mBatGoodPath;
+
+        if (path != mLastLinePath) {
+            if (mLastLinePath != null) {
+                mLastLinePath.lineTo(x, y);
             }
-            curLevelPath.lineTo(w, mLevelTop+levelh);
-            curLevelPath.lineTo(startX, mLevelTop+levelh);
-            curLevelPath.close();
-        }
-        
-        if (lastCharging) {
-            mChargingPath.lineTo(w, h-mChargingOffset);
-        }
-        if (lastScreenOn) {
-            mScreenOnPath.lineTo(w, h-mScreenOnOffset);
-        }
-        if (lastGpsOn) {
-            mGpsOnPath.lineTo(w, h-mGpsOnOffset);
-        }
-        if (lastWifiRunning) {
-            mWifiRunningPath.lineTo(w, h-mWifiRunningOffset);
+            path.moveTo(x, y);
+            mLastLinePath = path;
+        } else {
+            path.lineTo(x, y);
         }
-        if (lastWakeLock) {
-            mWakeLockPath.lineTo(w, h-mWakeLockOffset);
+
+        if (mLastLevelX < 0) {
+            mBatLevelPath.moveTo(x, y);
+            mLevelStartX = x;
+        } else {
+            mBatLevelPath.lineTo(x, y);
         }
-        if (mHavePhoneSignal) {
-            mPhoneSignalChart.finish(w);
+        mLastLevelX = x;
+        mLastLevelY = y;
+    }
+
+    /**
+     * Close the current level segment at the given x, such as where history
+     * was interrupted by a reboot.
+     */
+    void finishLevel(int x) {
+        if (mLastLevelX < 0) return;
+
+        if (mLastLevelX < x) {
+            if (mLastLinePath != null) {
+                mLastLinePath.lineTo(x, mLastLevelY);
+            }
+            mBatLevelPath.lineTo(x, mLastLevelY);
         }
+        mBatLevelPath.lineTo(x, mLevelBottom);
+        mBatLevelPath.lineTo(mLevelStartX, mLevelBottom);
+        mBatLevelPath.close();
+
+        mLastLevelX = mLastLevelY = -1;
+        mLastLinePath = null;
     }
-    
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        
+        mPathsValid = false;
+    }
+
+    void generatePaths(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         mThinLineWidth = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 2, getResources().getDisplayMetrics());
@@ -504,160 +684,134 @@ public class BatteryHistoryChart extends View {
         mWakeLockPath.reset();
         mChargingPath.reset();
         
-        final long timeStart = mHistStart;
-        final long timeChange = mHistEnd-mHistStart;
-        
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
         
         final int levelh = h - mLevelOffset - mLevelTop;
         mLevelBottom = mLevelTop + levelh;
-        
-        int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
-        Path curLevelPath = null;
-        Path lastLinePath = null;
-        boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
-                        }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
-                            lastScreenOn = screenOn;
-                        }
-
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
-                        }
-
-                        final boolean wifiRunning =
-                            (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
-
-                        final boolean wakeLock =
-                            (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                        if (wakeLock != lastWakeLock) {
-                            if (wakeLock) {
-                                mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                            } else {
-                                mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                            }
-                            lastWakeLock = wakeLock;
-                        }
-
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
-                        }
-                    }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
-                    }
+        // collapse history into pixel columns, so that path complexity
+        // depends on width rather than number of history records
+        if (mColumns == null || mColumns.width != w) {
+            mColumns = new HistoryColumns(w);
+        }
+        final HistoryColumns cols = mColumns;
+        cols.aggregate(mHistory, mHistStart, mHistEnd-mHistStart);
+
+        mLastLevelX = mLastLevelY = -1;
+        mLastLinePath = null;
+        for (int x = 0; x < w; x++) {
+            if (cols.hasLevel[x]) {
+                final byte first = cols.firstLevel[x];
+                final byte last = cols.lastLevel[x];
+                final byte min = cols.minLevel[x];
+                final byte max = cols.maxLevel[x];
+                levelTo(x, levelToY(first, batLow, batChange, levelh), first);
+                if (min != max) {
+                    // visit extremes in the direction level was heading
+                    final byte from = first > last ? max : min;
+                    final byte to = first > last ? min : max;
+                    levelTo(x, levelToY(from, batLow, batChange, levelh), from);
+                    levelTo(x, levelToY(to, batLow, batChange, levelh), to);
                 }
-                
-                i++;
+                levelTo(x, levelToY(last, batLow, batChange, levelh), last);
+            }
+            if (cols.segmentEnd[x]) {
+                finishLevel(x+1);
             }
         }
-        
-        finishPaths(w, h, levelh, startX, lastY, curLevelPath, lastX,
-                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                lastWakeLock, lastLinePath);
+        finishLevel(w);
+
+        addStateSpans(mChargingPath, HistoryColumns.STATE_CHARGING, w, h-mChargingOffset);
+        addStateSpans(mScreenOnPath, HistoryColumns.STATE_SCREEN_ON, w, h-mScreenOnOffset);
+        addStateSpans(mGpsOnPath, HistoryColumns.STATE_GPS_ON, w, h-mGpsOnOffset);
+        addStateSpans(mWifiRunningPath, HistoryColumns.STATE_WIFI_RUNNING, w,
+                h-mWifiRunningOffset);
+        addStateSpans(mWakeLockPath, HistoryColumns.STATE_WAKE_LOCK, w, h-mWakeLockOffset);
+
+        if (mLargeMode && mHavePhoneSignal) {
+            int bin = 0;
+            for (int x = 0; x < w; x++) {
+                if (cols.coverage[x] <= 0) {
+                    bin = 0;
+                } else if (cols.hasLevel[x]) {
+                    bin = cols.phoneSignalBin[x];
+                }
+                mPhoneSignalChart.addTick(x, bin);
+            }
+            mPhoneSignalChart.finish(w);
+        }
+    }
+
+    int levelToY(byte level, int batLow, int batChange, int levelh) {
+        return mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
+    }
+
+    /**
+     * Add a horizontal line at {@code y} for each run of columns where the
+     * given state was on for at least half of the time covered.
+     */
+    void addStateSpans(Path path, int state, int w, int y) {
+        boolean lastOn = false;
+        for (int x = 0; x < w; x++) {
+            final boolean on = mColumns.isOn(state, x);
+            if (on != lastOn) {
+                if (on) {
+                    path.moveTo(x, y);
+                } else {
+                    path.lineTo(x, y);
+                }
+                lastOn = on;
+            }
+        }
+        if (lastOn) {
+            path.lineTo(w, y);
+        }
     }
     
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (mStats == null) return;
         
         final int width = getWidth();
         final int height = getHeight();
-        
+        if (width <= 0 || height <= 0) return;
+
+        if (!mPathsValid) {
+            generatePaths(width, height);
+            mPathsValid = true;
+            mCacheValid = false;
+        }
+
+        // redraw into cache only when size or history changes, so each
+        // frame costs the same however long history is
+        if (mCacheBitmap == null || mCacheBitmap.getWidth() != width
+                || mCacheBitmap.getHeight() != height) {
+            if (mCacheBitmap != null) {
+                mCacheBitmap.recycle();
+            }
+            mCacheBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCacheValid = false;
+        }
+        if (!mCacheValid) {
+            mCacheBitmap.eraseColor(0);
+            drawChart(new Canvas(mCacheBitmap), width, height);
+            mCacheValid = true;
+        }
+        canvas.drawBitmap(mCacheBitmap, 0, 0, null);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mCacheBitmap != null) {
+            mCacheBitmap.recycle();
+            mCacheBitmap = null;
+        }
+    }
+
+    void drawChart(Canvas canvas, int width, int height) {
         canvas.drawPath(mBatLevelPath, mBatteryBackgroundPaint);
         if (mLargeMode) {
             canvas.drawText(mDurationString, 0, -mTextAscent + (mLineWidth/2),
@@ -17,8 +17,9 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Fragment;
+import android.app.LoaderManager.LoaderCallbacks;
+import android.content.Loader;
 import android.os.Bundle;
-import android.os.Parcel;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,27 +28,39 @@ import com.android.internal.os.BatteryStatsImpl;
 import com.android.settings.R;
 
 public class BatteryHistoryDetail extends Fragment {
-    public static final String EXTRA_STATS = "stats";
+    private BatteryHistoryChart mChart;
 
-    private BatteryStatsImpl mStats;
-
-    @Override
-    public void onCreate(Bundle icicle) {
-        super.onCreate(icicle);
-        byte[] data = getArguments().getByteArray(EXTRA_STATS);
-        Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(data, 0, data.length);
-        parcel.setDataPosition(0);
-        mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                .createFromParcel(parcel);
-    }
-    
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.preference_batteryhistory, null);
-        BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
+        mChart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
         return view;
     }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getLoaderManager().initLoader(0, null, mStatsCallbacks);
+    }
+
+    private final LoaderCallbacks<BatteryStatsImpl> mStatsCallbacks = new LoaderCallbacks<
+            BatteryStatsImpl>() {
+        @Override
+        public Loader<BatteryStatsImpl> onCreateLoader(int id, Bundle args) {
+            return new BatteryStatsLoader(getActivity());
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryStatsImpl> loader, BatteryStatsImpl data) {
+            if (data != null) {
+                mChart.setStats(data);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryStatsImpl> loader) {
+            // chart keeps drawing last snapshot until view goes away
+        }
+    };
 }
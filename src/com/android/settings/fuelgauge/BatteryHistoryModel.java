@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.util.Arrays;
+
+/**
+ * Battery history decoded in a single pass into parallel primitive arrays,
+ * so that {@link BatteryHistoryChart} can build its paths for any size by
+ * scanning arrays instead of walking {@link BatteryStats} history again.
+ * <p>
+ * Each entry is either an update, holding time, level and state bits, or a
+ * break where the device rebooted or history was otherwise interrupted.
+ * Overflow markers and trailing breaks are dropped.
+ */
+class BatteryHistoryModel {
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Entry is a {@link HistoryItem#CMD_UPDATE}. */
+    static final byte TYPE_UPDATE = 0;
+    /** Entry interrupts history, such as {@link HistoryItem#CMD_START}. */
+    static final byte TYPE_BREAK = 1;
+
+    private static BatteryStats sLastStats;
+    private static BatteryHistoryModel sLastModel;
+
+    int size;
+    byte[] types = new byte[INITIAL_CAPACITY];
+    long[] times = new long[INITIAL_CAPACITY];
+    byte[] levels = new byte[INITIAL_CAPACITY];
+    int[] states = new int[INITIAL_CAPACITY];
+
+    long histStart;
+    long histEnd;
+    int aggrStates;
+
+    /**
+     * Return model of the given stats, reusing the last decoded model when
+     * asked for the same stats again, as happens when several screens share
+     * a {@link BatteryStatsLoader} snapshot. Must be called on main thread.
+     */
+    static BatteryHistoryModel get(BatteryStats stats) {
+        if (stats != sLastStats) {
+            sLastModel = decode(stats);
+            sLastStats = stats;
+        }
+        return sLastModel;
+    }
+
+    static BatteryHistoryModel decode(BatteryStats stats) {
+        final BatteryHistoryModel model = new BatteryHistoryModel();
+        boolean first = true;
+        int lastUpdate = -1;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                    if (first) {
+                        first = false;
+                        model.histStart = rec.time;
+                    }
+                    model.histEnd = rec.time;
+                    model.aggrStates |= rec.states;
+                    lastUpdate = model.size;
+                    model.append(TYPE_UPDATE, rec.time, rec.batteryLevel, rec.states);
+                } else if (rec.cmd != HistoryItem.CMD_OVERFLOW) {
+                    model.append(TYPE_BREAK, rec.time, (byte) 0, 0);
+                }
+            }
+        }
+        model.size = lastUpdate + 1;
+        if (model.histEnd <= model.histStart) model.histEnd = model.histStart + 1;
+        return model;
+    }
+
+    private void append(byte type, long time, byte level, int state) {
+        if (size == times.length) {
+            final int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            times = Arrays.copyOf(times, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        types[size] = type;
+        times[size] = time;
+        levels[size] = level;
+        states[size] = state;
+        size++;
+    }
+}
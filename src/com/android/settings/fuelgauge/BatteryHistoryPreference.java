@@ -45,6 +45,13 @@ public class BatteryHistoryPreference extends Preference {
         return mStats;
     }
 
+    void setStats(BatteryStats stats) {
+        if (stats != mStats) {
+            mStats = stats;
+            notifyChanged();
+        }
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
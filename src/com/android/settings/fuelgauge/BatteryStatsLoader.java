@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+
+/**
+ * Loads {@link BatteryStatsImpl} from the battery stats service and unparcels
+ * it on a background thread. The resulting snapshot is shared by every fuel
+ * gauge screen in this process, and must be treated as immutable once
+ * delivered. It's only loaded again after {@link Intent#ACTION_BATTERY_CHANGED}
+ * reports a different level or plugged state, or after {@link #invalidate()}.
+ */
+public class BatteryStatsLoader extends AsyncTaskLoader<BatteryStatsImpl> {
+    private static final String TAG = "BatteryStatsLoader";
+
+    private static final Object sLock = new Object();
+
+    private static BatteryStatsImpl sSnapshot;
+    private static int sGeneration;
+    private static int sSnapshotGeneration;
+
+    /** Battery state last reported by the battery broadcast. */
+    private static int sLevel = -1;
+    private static int sPlugged = -1;
+
+    private BroadcastReceiver mBatteryReceiver;
+
+    public BatteryStatsLoader(Context context) {
+        super(context);
+    }
+
+    /**
+     * Return the current shared snapshot, or {@code null} if none has been
+     * loaded or it has been invalidated since.
+     */
+    public static BatteryStatsImpl getSnapshot() {
+        synchronized (sLock) {
+            return sSnapshotGeneration == sGeneration ? sSnapshot : null;
+        }
+    }
+
+    /**
+     * Mark the shared snapshot as stale, so that the next load queries the
+     * battery stats service again.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+        }
+    }
+
+    /**
+     * Record battery state from the given {@link Intent#ACTION_BATTERY_CHANGED}
+     * broadcast, invalidating the shared snapshot if level or plugged state
+     * changed since the last broadcast.
+     *
+     * @return {@code true} if the snapshot was invalidated.
+     */
+    static boolean updateBatteryState(Intent intent) {
+        final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+        final int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        synchronized (sLock) {
+            final boolean changed = sLevel != -1 && (level != sLevel || plugged != sPlugged);
+            sLevel = level;
+            sPlugged = plugged;
+            if (changed) {
+                sGeneration++;
+            }
+            return changed;
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+
+        if (mBatteryReceiver == null) {
+            // sticky broadcast is delivered immediately, catching up on any
+            // change that happened while nobody was watching.
+            mBatteryReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if (updateBatteryState(intent)) {
+                        onContentChanged();
+                    }
+                }
+            };
+            getContext().registerReceiver(
+                    mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        }
+
+        final BatteryStatsImpl snapshot = getSnapshot();
+        if (snapshot != null) {
+            deliverResult(snapshot);
+        }
+        if (snapshot == null || takeContentChanged()) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public BatteryStatsImpl loadInBackground() {
+        final int generation;
+        synchronized (sLock) {
+            if (sSnapshotGeneration == sGeneration && sSnapshot != null) {
+                return sSnapshot;
+            }
+            generation = sGeneration;
+        }
+
+        final IBatteryStats batteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        final BatteryStatsImpl stats;
+        try {
+            final byte[] data = batteryInfo.getStatistics();
+            final Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+
+        synchronized (sLock) {
+            // only share if nothing changed while we were loading
+            if (generation == sGeneration) {
+                sSnapshot = stats;
+                sSnapshotGeneration = generation;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+        unregisterBatteryReceiver();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        unregisterBatteryReceiver();
+    }
+
+    private void unregisterBatteryReceiver() {
+        if (mBatteryReceiver != null) {
+            getContext().unregisterReceiver(mBatteryReceiver);
+            mBatteryReceiver = null;
+        }
+    }
+}
@@ -20,11 +20,13 @@ import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.ApplicationErrorReport;
 import android.app.Fragment;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.app.admin.DevicePolicyManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -32,6 +34,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Process;
 import android.preference.PreferenceActivity;
@@ -45,6 +48,7 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.android.internal.os.BatteryStatsImpl;
 import com.android.settings.DisplaySettings;
 import com.android.settings.LocationSettings;
 import com.android.settings.R;
@@ -53,6 +57,9 @@ import com.android.settings.applications.InstalledAppDetails;
 import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.wifi.WifiSettings;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 public class PowerUsageDetail extends Fragment implements Button.OnClickListener {
 
     enum DrainType {
@@ -94,8 +101,7 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
     public static final String EXTRA_UID = "uid";
     public static final String EXTRA_USAGE_SINCE = "since";
     public static final String EXTRA_USAGE_DURATION = "duration";
-    public static final String EXTRA_REPORT_DETAILS = "report_details";
-    public static final String EXTRA_REPORT_CHECKIN_DETAILS = "report_checkin_details";
+    public static final String EXTRA_STATS_TYPE = "statsType"; // BatteryStats.STATS_*
     public static final String EXTRA_DETAIL_TYPES = "types"; // Array of usage types (cpu, gps, etc)
     public static final String EXTRA_DETAIL_VALUES = "values"; // Array of doubles
     public static final String EXTRA_DRAIN_TYPE = "drainType"; // DrainType
@@ -121,6 +127,7 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
     private DrainType mDrainType;
     private Drawable mAppIcon;
     private double mNoCoverage; // Percentage of time that there was no coverage
+    private BatteryStatsImpl mStats;
 
     private boolean mUsesGps;
 
@@ -144,6 +151,14 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        // only needed for reports, but usually already loaded by summary
+        getLoaderManager().initLoader(0, null, mStatsCallbacks);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -472,8 +487,18 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         ApplicationErrorReport.BatteryInfo batteryInfo = new ApplicationErrorReport.BatteryInfo();
         batteryInfo.usagePercent = args.getInt(EXTRA_PERCENT, 1);
         batteryInfo.durationMicros = args.getLong(EXTRA_USAGE_DURATION, 0);
-        batteryInfo.usageDetails = args.getString(EXTRA_REPORT_DETAILS);
-        batteryInfo.checkinDetails = args.getString(EXTRA_REPORT_CHECKIN_DETAILS);
+        if (mStats != null) {
+            final int statsType = args.getInt(EXTRA_STATS_TYPE,
+                    BatteryStats.STATS_SINCE_CHARGED);
+
+            StringWriter result = new StringWriter();
+            mStats.dumpLocked(new PrintWriter(result), "", statsType, mUid);
+            batteryInfo.usageDetails = result.toString();
+
+            result = new StringWriter();
+            mStats.dumpCheckinLocked(new PrintWriter(result), statsType, mUid);
+            batteryInfo.checkinDetails = result.toString();
+        }
         report.batteryInfo = batteryInfo;
 
         Intent result = new Intent(Intent.ACTION_APP_ERROR);
@@ -483,6 +508,24 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         startActivity(result);
     }
     
+    private final LoaderCallbacks<BatteryStatsImpl> mStatsCallbacks = new LoaderCallbacks<
+            BatteryStatsImpl>() {
+        @Override
+        public Loader<BatteryStatsImpl> onCreateLoader(int id, Bundle args) {
+            return new BatteryStatsLoader(getActivity());
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryStatsImpl> loader, BatteryStatsImpl data) {
+            mStats = data;
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryStatsImpl> loader) {
+            mStats = null;
+        }
+    };
+
     private void fillPackagesSection(int uid) {
         if (uid < 1) {
             removePackagesSection();
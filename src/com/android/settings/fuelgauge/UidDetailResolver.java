@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.google.android.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide resolver of user-facing label, icon and package for a UID, as
+ * shown by {@link PowerUsageSummary}. Resolved details are kept in a bounded
+ * LRU keyed by UID. Requests are served by a small pool of workers in
+ * priority order, and results are handed to {@link Listener}s on the main
+ * thread in batches, instead of one callback per UID.
+ * <p>
+ * Icons are kept as {@link Drawable.ConstantState}, since a cached
+ * {@link Drawable} would hold on to the views, and so the activity, that
+ * last drew it. Details of a UID are dropped when one of its packages is
+ * added, removed or changed.
+ */
+public class UidDetailResolver {
+    private static final int MAX_CACHED = 128;
+    private static final int WORKERS = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** Delay to collect results into a single batch. */
+    private static final long BATCH_DELAY_MS = 50;
+
+    public static class UidDetail {
+        public final int uid;
+        public final String name;
+        public final String packageName;
+        private final Drawable.ConstantState mIconState;
+
+        /** Access order in {@link UidDetailResolver#mCache}. */
+        long lastUsed;
+
+        public UidDetail(int uid, String name, String packageName,
+                Drawable.ConstantState iconState) {
+            this.uid = uid;
+            this.name = name;
+            this.packageName = packageName;
+            mIconState = iconState;
+        }
+
+        /**
+         * Return a new icon drawable, for use by a single view.
+         */
+        public Drawable newIcon(Resources res) {
+            return mIconState.newDrawable(res);
+        }
+    }
+
+    public interface Listener {
+        /** Details for the given UIDs were resolved. Called on main thread. */
+        public void onUidDetailsResolved(SparseArray<UidDetail> details);
+    }
+
+    private static UidDetailResolver sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    private final ArrayList<Listener> mListeners = Lists.newArrayList();
+
+    // all fields below guarded by mCache
+    private final SparseArray<UidDetail> mCache = new SparseArray<UidDetail>();
+    private final SparseArray<Request> mPending = new SparseArray<Request>();
+    private SparseArray<UidDetail> mBatch = new SparseArray<UidDetail>();
+    private boolean mBatchPosted;
+    private long mSequence;
+
+    public static synchronized UidDetailResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidDetailResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UidDetailResolver(Context context) {
+        mContext = context;
+        mExecutor = new ThreadPoolExecutor(WORKERS, WORKERS, WORKER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "UidDetailResolver #" + (++mCount));
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid == -1) return;
+            synchronized (mCache) {
+                mCache.remove(uid);
+            }
+        }
+    };
+
+    /** Must be called on main thread. */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /** Must be called on main thread. */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Return already resolved details for the given UID, or {@code null}.
+     */
+    public UidDetail getCached(int uid) {
+        synchronized (mCache) {
+            final UidDetail detail = mCache.get(uid);
+            if (detail != null) {
+                detail.lastUsed = ++mSequence;
+            }
+            return detail;
+        }
+    }
+
+    /**
+     * Request that details for the given UID be resolved in the background.
+     * Lower {@code priority} values are resolved first; requesting a UID
+     * that is still pending only moves it ahead if the new priority is lower.
+     *
+     * @param fallbackName name to use when no package provides a label.
+     */
+    public void request(int uid, String fallbackName, long priority) {
+        final Request request;
+        synchronized (mCache) {
+            if (mCache.get(uid) != null) return;
+
+            final Request pending = mPending.get(uid);
+            if (pending != null) {
+                if (pending.priority <= priority || !mExecutor.remove(pending)) return;
+            }
+            request = new Request(uid, fallbackName, priority, ++mSequence);
+            mPending.put(uid, request);
+        }
+        mExecutor.execute(request);
+    }
+
+    private void publish(UidDetail detail) {
+        synchronized (mCache) {
+            mPending.remove(detail.uid);
+
+            detail.lastUsed = ++mSequence;
+            mCache.put(detail.uid, detail);
+            if (mCache.size() > MAX_CACHED) {
+                trimCacheLocked();
+            }
+
+            mBatch.put(detail.uid, detail);
+            if (!mBatchPosted) {
+                mBatchPosted = true;
+                mHandler.postDelayed(mDispatchBatch, BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    private void trimCacheLocked() {
+        int eldest = 0;
+        for (int i = 1; i < mCache.size(); i++) {
+            if (mCache.valueAt(i).lastUsed < mCache.valueAt(eldest).lastUsed) {
+                eldest = i;
+            }
+        }
+        mCache.removeAt(eldest);
+    }
+
+    private final Runnable mDispatchBatch = new Runnable() {
+        @Override
+        public void run() {
+            final SparseArray<UidDetail> batch;
+            synchronized (mCache) {
+                batch = mBatch;
+                mBatch = new SparseArray<UidDetail>();
+                mBatchPosted = false;
+            }
+            for (int i = mListeners.size() - 1; i >= 0; i--) {
+                mListeners.get(i).onUidDetailsResolved(batch);
+            }
+        }
+    };
+
+    private class Request implements Runnable, Comparable<Request> {
+        public final int uid;
+        public final String fallbackName;
+        public final long priority;
+        public final long sequence;
+
+        public Request(int uid, String fallbackName, long priority, long sequence) {
+            this.uid = uid;
+            this.fallbackName = fallbackName;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            publish(resolve(uid, fallbackName));
+        }
+    }
+
+    /**
+     * Resolve label and icon of the given UID from the packages sharing it.
+     */
+    private UidDetail resolve(int uid, String fallbackName) {
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new UidDetail(uid, Integer.toString(uid), null,
+                    pm.getDefaultActivityIcon().getConstantState());
+        }
+
+        String name = fallbackName;
+        String packageName = null;
+        Drawable icon = null;
+
+        String[] packageLabels = new String[packages.length];
+        System.arraycopy(packages, 0, packageLabels, 0, packages.length);
+
+        // Convert package names to user-facing labels where possible
+        for (int i = 0; i < packageLabels.length; i++) {
+            try {
+                ApplicationInfo ai = pm.getApplicationInfo(packageLabels[i], 0);
+                CharSequence label = ai.loadLabel(pm);
+                if (label != null) {
+                    packageLabels[i] = label.toString();
+                }
+                if (ai.icon != 0) {
+                    packageName = packages[i];
+                    icon = ai.loadIcon(pm);
+                    break;
+                }
+            } catch (NameNotFoundException e) {
+            }
+        }
+        if (icon == null) icon = pm.getDefaultActivityIcon();
+
+        if (packageLabels.length == 1) {
+            name = packageLabels[0];
+        } else {
+            // Look for an official name for this UID.
+            for (String pkgName : packages) {
+                try {
+                    final PackageInfo pi = pm.getPackageInfo(pkgName, 0);
+                    if (pi.sharedUserLabel != 0) {
+                        final CharSequence nm = pm.getText(pkgName,
+                                pi.sharedUserLabel, pi.applicationInfo);
+                        if (nm != null) {
+                            name = nm.toString();
+                            if (pi.applicationInfo.icon != 0) {
+                                packageName = pkgName;
+                                icon = pi.applicationInfo.loadIcon(pm);
+                            }
+                            break;
+                        }
+                    }
+                } catch (PackageManager.NameNotFoundException e) {
+                }
+            }
+        }
+        Drawable.ConstantState iconState = icon.getConstantState();
+        if (iconState == null) iconState = pm.getDefaultActivityIcon().getConstantState();
+        return new UidDetail(uid, name, packageName, iconState);
+    }
+}
@@ -42,6 +42,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_FIELDS = "fields";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsSnapshots mSnapshots;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -56,16 +57,30 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
-    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public ChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkStatsSnapshots snapshots, Bundle args) {
         super(context);
         mSession = session;
+        mSnapshots = snapshots;
         mArgs = args;
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final AppItem app = mArgs.getParcelable(KEY_APP);
+        final int fields = mArgs.getInt(KEY_FIELDS);
+
+        // snapshots only hold default fields
+        final ChartData snapshot = isDefaultFields(fields)
+                ? mSnapshots.getChartData(template, app) : null;
+        if (snapshot != null) {
+            deliverResult(snapshot);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -74,8 +89,13 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
 
+        final int generation = mSnapshots.getGeneration();
         try {
-            return loadInBackground(template, app, fields);
+            final ChartData data = loadInBackground(template, app, fields);
+            if (isDefaultFields(fields)) {
+                mSnapshots.putChartData(template, app, generation, data);
+            }
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -83,6 +103,10 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         }
     }
 
+    private static boolean isDefaultFields(int fields) {
+        return fields == (FIELD_RX_BYTES | FIELD_TX_BYTES);
+    }
+
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
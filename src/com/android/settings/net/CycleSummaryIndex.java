@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.util.Objects;
+import com.google.android.collect.Lists;
+
+import java.util.ArrayList;
+
+/**
+ * Background index of {@link INetworkStatsSession#getSummaryForAllUid}
+ * results for a set of time ranges under a single {@link NetworkTemplate},
+ * typically one range for each cycle of a {@link android.net.NetworkPolicy}.
+ * Results are kept in {@link NetworkStatsSnapshots}, so switching between
+ * indexed ranges can bind them instead of querying the stats service again.
+ * <p>
+ * Ranges that ended before they were summarized never change, so only ranges
+ * that were still open at that time are summarized again once snapshots are
+ * invalidated. Ranges are identified by their start alone, since the end of
+ * the open cycle moves along with the current time. Everything except the
+ * background query runs on the main thread.
+ */
+public class CycleSummaryIndex {
+    private static final String TAG = "CycleSummaryIndex";
+    private static final boolean LOGD = false;
+
+    public interface Listener {
+        /** Summary for the given range became available or was refreshed. */
+        public void onSummaryIndexed(long start, long end, NetworkStats stats);
+    }
+
+    private static class Range {
+        public final long start;
+        public final long end;
+
+        /** Set until a task has stored a summary for this range. */
+        public boolean pending;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+    private final NetworkStatsSnapshots mSnapshots;
+    private final Listener mListener;
+
+    private NetworkTemplate mTemplate;
+    private ArrayList<Range> mRanges = Lists.newArrayList();
+
+    private IndexTask mTask;
+
+    public CycleSummaryIndex(
+            INetworkStatsSession session, NetworkStatsSnapshots snapshots, Listener listener) {
+        mSession = session;
+        mSnapshots = snapshots;
+        mListener = listener;
+    }
+
+    /**
+     * Set the {@link NetworkTemplate} that ranges are summarized against,
+     * dropping ranges requested for a different template. Their summaries
+     * remain in {@link NetworkStatsSnapshots}.
+     */
+    public void setTemplate(NetworkTemplate template) {
+        if (!Objects.equal(mTemplate, template)) {
+            stop();
+            mTemplate = template;
+            mRanges.clear();
+        }
+    }
+
+    /**
+     * Request that the given range be indexed by the next {@link #start()}.
+     * Ranges with a valid snapshot are left untouched. A range with the same
+     * start but a different end replaces the earlier one in place.
+     */
+    public void addRange(long start, long end) {
+        final int index = findRange(start);
+        Range range = index >= 0 ? mRanges.get(index) : null;
+        if (range == null) {
+            range = new Range(start, end);
+            mRanges.add(range);
+        } else if (range.end != end) {
+            // results still in flight for the old end are dropped on delivery
+            range = new Range(start, end);
+            mRanges.set(index, range);
+        }
+        if (mSnapshots.getSummary(mTemplate, start, end) == null) {
+            range.pending = true;
+        }
+    }
+
+    /**
+     * Return indexed summary for exactly the given range, or {@code null} if
+     * it hasn't been indexed yet.
+     */
+    public NetworkStats getSummary(long start, long end) {
+        return mSnapshots.getSummary(mTemplate, start, end);
+    }
+
+    /**
+     * Kick off background indexing of any pending ranges, in the order they
+     * were first added.
+     */
+    public void start() {
+        if (mTemplate == null) return;
+
+        final ArrayList<Range> pending = Lists.newArrayList();
+        for (Range range : mRanges) {
+            if (range.pending) {
+                pending.add(range);
+            }
+        }
+        if (pending.isEmpty()) return;
+
+        // ranges stay pending until delivered, so any running task can be
+        // replaced without losing work.
+        stop();
+        mTask = new IndexTask(mTemplate);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                pending.toArray(new Range[pending.size()]));
+    }
+
+    /**
+     * Cancel any outstanding background indexing. Ranges that were not yet
+     * summarized stay pending for the next {@link #start()}.
+     */
+    public void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    private int findRange(long start) {
+        for (int i = 0; i < mRanges.size(); i++) {
+            if (mRanges.get(i).start == start) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private class IndexTask extends AsyncTask<Range, Object, Void> {
+        private final NetworkTemplate mTaskTemplate;
+
+        public IndexTask(NetworkTemplate template) {
+            mTaskTemplate = template;
+        }
+
+        @Override
+        protected Void doInBackground(Range... ranges) {
+            for (Range range : ranges) {
+                // remaining ranges stay pending for the next task
+                if (isCancelled()) break;
+
+                final int generation = mSnapshots.getGeneration();
+                final long loadedTime = System.currentTimeMillis();
+                try {
+                    final NetworkStats stats = mSession.getSummaryForAllUid(
+                            mTaskTemplate, range.start, range.end, false);
+                    mSnapshots.putSummary(mTaskTemplate, range.start, range.end, generation,
+                            loadedTime, stats);
+                    publishProgress(range, stats);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "problem indexing summary", e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(Object... values) {
+            final Range range = (Range) values[0];
+            final NetworkStats stats = (NetworkStats) values[1];
+
+            // range may have been dropped while we were querying
+            if (!Objects.equal(mTemplate, mTaskTemplate) || !mRanges.contains(range)) return;
+
+            range.pending = false;
+            if (LOGD) Log.d(TAG, "indexed start=" + range.start + ", end=" + range.end);
+
+            if (mListener != null) {
+                mListener.onSummaryIndexed(range.start, range.end, stats);
+            }
+        }
+    }
+}
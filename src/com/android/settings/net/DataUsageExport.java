@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+import libcore.io.IoUtils;
+
+/**
+ * Streaming export of per-UID, per-bucket data usage from an
+ * {@link INetworkStatsSession}, for pulling entire history off a device.
+ * <p>
+ * Files are a sequence of self-contained chunks, one for each call to
+ * {@link #export(INetworkStatsSession, NetworkTemplate, long, long, OutputStream)},
+ * so repeated exports can simply append to an existing file. Exports are
+ * triggered through {@link DataUsageExportReceiver}. A chunk is a
+ * header describing the template and range, followed by one record for each
+ * UID and set, each holding zig-zag variable-length encoded buckets with
+ * start times stored as deltas. A truncated trailing chunk, such as left by
+ * an interrupted export, is ignored when reading.
+ * <p>
+ * Only a single {@link NetworkStatsHistory} is held in memory at a time,
+ * and readers are handed one bucket at a time through {@link Visitor}.
+ */
+public class DataUsageExport {
+    private static final String TAG = "DataUsageExport";
+
+    private static final int FILE_MAGIC = 0x44555831; // "DUX1"
+    private static final int VERSION_INIT = 1;
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_HISTORY = 1;
+
+    /**
+     * Receives contents of an export as it is read.
+     */
+    public interface Visitor {
+        public void onChunk(int matchRule, String subscriberId, long start, long end);
+        public void onBucket(int uid, int set, long bucketStart, long bucketDuration,
+                long rxBytes, long rxPackets, long txBytes, long txPackets);
+    }
+
+    /**
+     * Append usage of every UID under the given template between
+     * {@code start} and {@code end} to the given file. When the export
+     * fails, the file is truncated back to its original length, so a partial
+     * chunk never hides chunks appended after it.
+     */
+    public static void export(INetworkStatsSession session, NetworkTemplate template,
+            long start, long end, File file) throws IOException, RemoteException {
+        final FileOutputStream out = new FileOutputStream(file, true);
+        boolean success = false;
+        try {
+            final long startLength = out.getChannel().size();
+            try {
+                export(session, template, start, end, out);
+                success = true;
+            } finally {
+                if (!success) {
+                    truncateQuietly(out, startLength);
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private static void truncateQuietly(FileOutputStream out, long length) {
+        try {
+            out.getChannel().truncate(length);
+        } catch (IOException e) {
+            Log.w(TAG, "problem truncating partial export", e);
+        }
+    }
+
+    /**
+     * Write a single chunk describing usage of every UID under the given
+     * template between {@code start} and {@code end}.
+     */
+    public static void export(INetworkStatsSession session, NetworkTemplate template,
+            long start, long end, OutputStream rawOut) throws IOException, RemoteException {
+        final DataOutputStream out = beginChunk(
+                rawOut, template.getMatchRule(), template.getSubscriberId(), start, end);
+
+        // summary only tells us which UIDs and sets have data in range;
+        // buckets are then streamed one history at a time.
+        final NetworkStats summary = session.getSummaryForAllUid(template, start, end, false);
+        NetworkStats.Entry summaryEntry = null;
+
+        final int summarySize = summary != null ? summary.size() : 0;
+        for (int i = 0; i < summarySize; i++) {
+            summaryEntry = summary.getValues(i, summaryEntry);
+            if (summaryEntry.tag != TAG_NONE) continue;
+
+            final NetworkStatsHistory history = session.getHistoryForUid(
+                    template, summaryEntry.uid, summaryEntry.set, TAG_NONE, FIELD_ALL);
+            if (history == null) continue;
+            writeHistory(out, summaryEntry.uid, summaryEntry.set, history, start, end);
+        }
+
+        endChunk(out);
+    }
+
+    /**
+     * Start a chunk by writing its header. Followed by any number of
+     * {@link #writeHistory} and a single {@link #endChunk}.
+     */
+    static DataOutputStream beginChunk(OutputStream rawOut, int matchRule,
+            String subscriberId, long start, long end) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_INIT);
+        out.writeInt(matchRule);
+        writeOptionalString(out, subscriberId);
+        out.writeLong(start);
+        out.writeLong(end);
+        return out;
+    }
+
+    /**
+     * Write a record with the buckets of the given history that have usage
+     * between {@code start} and {@code end}, if any.
+     */
+    static void writeHistory(DataOutputStream out, int uid, int set,
+            NetworkStatsHistory history, long start, long end) throws IOException {
+        if (history.size() == 0) return;
+
+        final int startIndex = history.getIndexBefore(start);
+        final int endIndex = history.getIndexAfter(end);
+
+        NetworkStatsHistory.Entry entry = null;
+        int count = 0;
+        for (int j = startIndex; j <= endIndex; j++) {
+            entry = history.getValues(j, entry);
+            if (isBucketIncluded(entry, start, end)) count++;
+        }
+        if (count == 0) return;
+
+        out.writeByte(RECORD_HISTORY);
+        out.writeInt(uid);
+        out.writeInt(set);
+        writeVarLong(out, history.getBucketDuration());
+        writeVarLong(out, count);
+
+        long lastStart = start;
+        for (int j = startIndex; j <= endIndex; j++) {
+            entry = history.getValues(j, entry);
+            if (!isBucketIncluded(entry, start, end)) continue;
+
+            writeVarLong(out, entry.bucketStart - lastStart);
+            writeVarLong(out, entry.rxBytes);
+            writeVarLong(out, entry.rxPackets);
+            writeVarLong(out, entry.txBytes);
+            writeVarLong(out, entry.txPackets);
+            lastStart = entry.bucketStart;
+        }
+    }
+
+    static void endChunk(DataOutputStream out) throws IOException {
+        out.writeByte(RECORD_END);
+        out.flush();
+    }
+
+    /**
+     * Read every complete chunk from the given file.
+     *
+     * @return number of complete chunks read.
+     */
+    public static int read(File file, Visitor visitor) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return read(in, visitor);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Read every complete chunk from the given stream. Buckets of a trailing
+     * truncated chunk may have already been delivered to the {@link Visitor}
+     * before the truncation was found.
+     *
+     * @return number of complete chunks read.
+     */
+    public static int read(InputStream rawIn, Visitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn));
+
+        int chunks = 0;
+        while (true) {
+            final int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                return chunks;
+            }
+
+            try {
+                readChunk(in, magic, visitor);
+                chunks++;
+            } catch (EOFException e) {
+                // interrupted export; everything before it is still valid
+                return chunks;
+            }
+        }
+    }
+
+    private static void readChunk(DataInputStream in, int magic, Visitor visitor)
+            throws IOException {
+        if (magic != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + magic);
+        }
+        final int version = in.readInt();
+        if (version != VERSION_INIT) {
+            throw new ProtocolException("unexpected version: " + version);
+        }
+
+        final int matchRule = in.readInt();
+        final String subscriberId = readOptionalString(in);
+        final long start = in.readLong();
+        final long end = in.readLong();
+        visitor.onChunk(matchRule, subscriberId, start, end);
+
+        while (true) {
+            final int record = in.readByte();
+            if (record == RECORD_END) {
+                return;
+            } else if (record != RECORD_HISTORY) {
+                throw new ProtocolException("unexpected record: " + record);
+            }
+
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final long bucketDuration = readVarLong(in);
+            final long count = readVarLong(in);
+
+            long bucketStart = start;
+            for (long i = 0; i < count; i++) {
+                bucketStart += readVarLong(in);
+                final long rxBytes = readVarLong(in);
+                final long rxPackets = readVarLong(in);
+                final long txBytes = readVarLong(in);
+                final long txPackets = readVarLong(in);
+                visitor.onBucket(uid, set, bucketStart, bucketDuration, rxBytes, rxPackets,
+                        txBytes, txPackets);
+            }
+        }
+    }
+
+    private static boolean isBucketIncluded(NetworkStatsHistory.Entry entry, long start, long end) {
+        final boolean overlaps = entry.bucketStart < end
+                && entry.bucketStart + entry.bucketDuration > start;
+        final boolean empty = entry.rxBytes == 0 && entry.rxPackets == 0 && entry.txBytes == 0
+                && entry.txPackets == 0;
+        return overlaps && !empty;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value)
+            throws IOException {
+        if (value != null) {
+            out.writeByte(1);
+            out.writeUTF(value);
+        } else {
+            out.writeByte(0);
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readByte() != 0 ? in.readUTF() : null;
+    }
+
+    /**
+     * Write zig-zag encoded variable-length long, so that small negative
+     * deltas stay compact.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        value = (value << 1) ^ (value >> 63);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        int shift = 0;
+        long result = 0;
+        while (shift < 64) {
+            final byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (result >>> 1) ^ -(result & 1);
+            }
+            shift += 7;
+        }
+        throw new ProtocolException("malformed long");
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.INetworkStatsService;
+import android.net.INetworkStatsSession;
+import android.net.NetworkTemplate;
+import android.net.TrafficStats;
+import android.os.Environment;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.google.android.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Appends the entire data usage history of the device to a file with
+ * {@link DataUsageExport}, covering mobile usage of the active subscriber
+ * and Wi-Fi usage. Requires {@link android.Manifest.permission#DUMP}, so it
+ * can be triggered from a shell, for example:
+ * <pre>
+ * adb shell am broadcast -a com.android.settings.net.action.EXPORT_DATA_USAGE \
+ *         --es path /sdcard/data_usage.dux
+ * adb pull /sdcard/data_usage.dux
+ * </pre>
+ */
+public class DataUsageExportReceiver extends BroadcastReceiver {
+    private static final String TAG = "DataUsageExport";
+
+    public static final String ACTION_EXPORT_DATA_USAGE =
+            "com.android.settings.net.action.EXPORT_DATA_USAGE";
+
+    /** Path of the file to append to, defaults to {@link #DEFAULT_FILE_NAME}. */
+    public static final String EXTRA_PATH = "path";
+
+    /** Name of the default file in external storage. */
+    private static final String DEFAULT_FILE_NAME = "data_usage.dux";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_EXPORT_DATA_USAGE.equals(intent.getAction())) return;
+
+        final String path = intent.getStringExtra(EXTRA_PATH);
+        final File file = path != null ? new File(path)
+                : new File(Environment.getExternalStorageDirectory(), DEFAULT_FILE_NAME);
+        final String subscriberId = TelephonyManager.from(context).getSubscriberId();
+
+        // reading entire history can take a while; keep it off main thread
+        final PendingResult result = goAsync();
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    export(file, subscriberId);
+                } finally {
+                    result.finish();
+                }
+            }
+        }.start();
+    }
+
+    private static void export(File file, String subscriberId) {
+        final ArrayList<NetworkTemplate> templates = Lists.newArrayList();
+        if (subscriberId != null) {
+            templates.add(buildTemplateMobileAll(subscriberId));
+        }
+        templates.add(buildTemplateWifiWildcard());
+
+        final INetworkStatsService statsService = INetworkStatsService.Stub.asInterface(
+                ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
+        INetworkStatsSession session = null;
+        try {
+            statsService.forceUpdate();
+            session = statsService.openSession();
+
+            final long end = System.currentTimeMillis();
+            for (NetworkTemplate template : templates) {
+                DataUsageExport.export(session, template, 0, end, file);
+            }
+            Log.i(TAG, "exported " + templates.size() + " templates to " + file);
+        } catch (RemoteException e) {
+            Log.w(TAG, "problem exporting data usage", e);
+        } catch (IOException e) {
+            Log.w(TAG, "problem exporting data usage to " + file, e);
+        } finally {
+            TrafficStats.closeQuietly(session);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+
+import com.android.internal.util.Objects;
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Store of recently loaded {@link ChartData} and summary {@link NetworkStats},
+ * keyed by {@link NetworkTemplate} and time range, so that moving between
+ * networks doesn't query {@link android.net.INetworkStatsSession} again.
+ * Snapshots stay valid until {@link #invalidate()} signals that stats have
+ * changed, except summaries of ranges that had already ended when they were
+ * loaded, since those can never change.
+ * <p>
+ * Safe to use from loader threads.
+ */
+public class NetworkStatsSnapshots {
+    private static final int MAX_SNAPSHOTS = 48;
+
+    /** Special {@link Key#appId} for network-wide {@link ChartData}. */
+    private static final int APP_NONE = -1;
+
+    private static class Key {
+        public final NetworkTemplate template;
+        public final int appId;
+        public final long start;
+        public final long end;
+
+        public Key(NetworkTemplate template, int appId, long start, long end) {
+            this.template = template;
+            this.appId = appId;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, appId, start, end);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key another = (Key) obj;
+                return Objects.equal(template, another.template) && appId == another.appId
+                        && start == another.start && end == another.end;
+            }
+            return false;
+        }
+    }
+
+    private static class Snapshot {
+        public final Object data;
+        public final int generation;
+        public final long loadedTime;
+
+        public Snapshot(Object data, int generation, long loadedTime) {
+            this.data = data;
+            this.generation = generation;
+            this.loadedTime = loadedTime;
+        }
+    }
+
+    private final LinkedHashMap<Key, Snapshot> mChartData = new SnapshotMap();
+    private final LinkedHashMap<Key, Snapshot> mSummaries = new SnapshotMap();
+
+    private int mGeneration;
+
+    /**
+     * Return current generation, which should be captured before querying
+     * stats and passed along when storing the result.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Signal that underlying stats have changed, invalidating all snapshots
+     * that could be affected.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mChartData.clear();
+    }
+
+    public synchronized ChartData getChartData(NetworkTemplate template, AppItem app) {
+        final Snapshot snapshot = mChartData.get(buildChartKey(template, app));
+        if (snapshot != null && snapshot.generation == mGeneration) {
+            return (ChartData) snapshot.data;
+        }
+        return null;
+    }
+
+    public synchronized void putChartData(
+            NetworkTemplate template, AppItem app, int generation, ChartData data) {
+        if (generation != mGeneration) return;
+        mChartData.put(buildChartKey(template, app), new Snapshot(data, generation, 0));
+    }
+
+    public synchronized NetworkStats getSummary(NetworkTemplate template, long start, long end) {
+        final Key key = new Key(template, APP_NONE, start, end);
+        final Snapshot snapshot = mSummaries.get(key);
+        if (snapshot == null) {
+            return null;
+        } else if (snapshot.generation == mGeneration || end <= snapshot.loadedTime) {
+            return (NetworkStats) snapshot.data;
+        } else {
+            mSummaries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store summary {@link NetworkStats} for the given range, which was
+     * queried at {@code loadedTime} under the given generation.
+     */
+    public synchronized void putSummary(NetworkTemplate template, long start, long end,
+            int generation, long loadedTime, NetworkStats stats) {
+        // stale results are still useful when their range had already ended
+        if (generation != mGeneration && end > loadedTime) return;
+        mSummaries.put(new Key(template, APP_NONE, start, end),
+                new Snapshot(stats, generation, loadedTime));
+    }
+
+    private static Key buildChartKey(NetworkTemplate template, AppItem app) {
+        return new Key(template, app != null ? app.appId : APP_NONE, 0, 0);
+    }
+
+    /**
+     * Access-ordered map that drops least recently used snapshots.
+     */
+    private static class SnapshotMap extends LinkedHashMap<Key, Snapshot> {
+        public SnapshotMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Snapshot> eldest) {
+            return size() > MAX_SNAPSHOTS;
+        }
+    }
+}
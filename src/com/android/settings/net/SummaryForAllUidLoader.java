@@ -30,6 +30,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsSnapshots mSnapshots;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -40,16 +41,28 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
-    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session,
+            NetworkStatsSnapshots snapshots, Bundle args) {
         super(context);
         mSession = session;
+        mSnapshots = snapshots;
         mArgs = args;
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final long start = mArgs.getLong(KEY_START);
+        final long end = mArgs.getLong(KEY_END);
+
+        final NetworkStats snapshot = mSnapshots.getSummary(template, start, end);
+        if (snapshot != null) {
+            deliverResult(snapshot);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -58,8 +71,12 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final int generation = mSnapshots.getGeneration();
+        final long loadedTime = System.currentTimeMillis();
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = mSession.getSummaryForAllUid(template, start, end, false);
+            mSnapshots.putSummary(template, start, end, generation, loadedTime, stats);
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
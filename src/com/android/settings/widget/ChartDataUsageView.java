@@ -248,13 +248,14 @@ public class ChartDataUsageView extends ChartView {
             mSweepWarning.setValidRange(0L, newMax);
             mSweepLimit.setValidRange(0L, newMax);
 
+            // only touch series and grid when the scale actually moved, so
+            // their cached layers survive sweep drags.
             if (changed) {
                 mSeries.invalidatePath();
                 mDetailSeries.invalidatePath();
+                mGrid.invalidate();
             }
 
-            mGrid.invalidate();
-
             // since we just changed axis, make sweep recalculate its value
             if (activeSweep != null) {
                 activeSweep.updateValueFromPosition();
@@ -421,12 +422,9 @@ public class ChartDataUsageView extends ChartView {
         }
 
         // default sweeps to last week of data
-        final long halfRange = (visibleEnd + visibleStart) / 2;
-        final long sweepMax = validEnd;
-        final long sweepMin = Math.max(visibleStart, (sweepMax - DateUtils.WEEK_IN_MILLIS));
-
-        mSweepLeft.setValue(sweepMin);
-        mSweepRight.setValue(sweepMax);
+        final long[] inspectRange = getDefaultInspectRange(mHistory, visibleStart, visibleEnd);
+        mSweepLeft.setValue(inspectRange[0]);
+        mSweepRight.setValue(inspectRange[1]);
 
         requestLayout();
         if (changed) {
@@ -439,6 +437,23 @@ public class ChartDataUsageView extends ChartView {
         updatePrimaryRange();
     }
 
+    /**
+     * Return the inspection range that {@link #setVisibleRange(long, long)}
+     * defaults to when showing the given range of {@link NetworkStatsHistory},
+     * which is the last "week" of available data. Returned as
+     * {@code [start, end]}.
+     */
+    public static long[] getDefaultInspectRange(
+            NetworkStatsHistory history, long visibleStart, long visibleEnd) {
+        final long historyEnd = history != null ? history.getEnd() : Long.MIN_VALUE;
+        final long validEnd = historyEnd == Long.MIN_VALUE ? visibleEnd
+                : Math.min(visibleEnd, historyEnd);
+
+        final long sweepMax = validEnd;
+        final long sweepMin = Math.max(visibleStart, (sweepMax - DateUtils.WEEK_IN_MILLIS));
+        return new long[] { sweepMin, sweepMax };
+    }
+
     private void updatePrimaryRange() {
         final long left = mSweepLeft.getValue();
         final long right = mSweepRight.getValue();
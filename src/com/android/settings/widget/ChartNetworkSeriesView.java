@@ -70,6 +70,8 @@ public class ChartNetworkSeriesView extends View {
     private long mEndTime = Long.MIN_VALUE;
 
     private boolean mPathValid = false;
+    /** Combined {@link ChartAxis#hashCode()} when path was last generated. */
+    private int mPathAxisHash;
     private boolean mEstimateVisible = false;
 
     private long mMax;
@@ -150,9 +152,11 @@ public class ChartNetworkSeriesView extends View {
      * area to be painted with {@link #mPaintFillSecondary}.
      */
     public void setPrimaryRange(long left, long right) {
-        mPrimaryLeft = left;
-        mPrimaryRight = right;
-        invalidate();
+        if (mPrimaryLeft != left || mPrimaryRight != right) {
+            mPrimaryLeft = left;
+            mPrimaryRight = right;
+            invalidate();
+        }
     }
 
     public void invalidatePath() {
@@ -173,6 +177,7 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.reset();
         mPathEstimate.reset();
         mPathValid = true;
+        mPathAxisHash = getAxisHash();
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
@@ -295,8 +300,11 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
-        mEstimateVisible = ESTIMATE_ENABLED ? estimateVisible : false;
-        invalidate();
+        estimateVisible = ESTIMATE_ENABLED ? estimateVisible : false;
+        if (mEstimateVisible != estimateVisible) {
+            mEstimateVisible = estimateVisible;
+            invalidate();
+        }
     }
 
     public long getMaxEstimate() {
@@ -314,11 +322,17 @@ public class ChartNetworkSeriesView extends View {
         }
     }
 
+    private int getAxisHash() {
+        return 31 * mHoriz.hashCode() + mVert.hashCode();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         int save;
 
-        if (!mPathValid) {
+        // only regenerate when data or axis scale changed; otherwise the
+        // existing path (and any cached layer) is still accurate.
+        if (!mPathValid || mPathAxisHash != getAxisHash()) {
             generatePath();
         }
 
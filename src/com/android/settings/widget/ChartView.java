@@ -47,6 +47,9 @@ public class ChartView extends FrameLayout {
     private int mOptimalWidth = -1;
     private float mOptimalWidthWeight = 0;
 
+    @ViewDebug.ExportedProperty
+    private boolean mCacheSeriesLayers = false;
+
     private Rect mContent = new Rect();
 
     public ChartView(Context context) {
@@ -64,6 +67,7 @@ public class ChartView extends FrameLayout {
                 attrs, R.styleable.ChartView, defStyle, 0);
         setOptimalWidth(a.getDimensionPixelSize(R.styleable.ChartView_optimalWidth, -1),
                 a.getFloat(R.styleable.ChartView_optimalWidthWeight, 0));
+        setCacheSeriesLayers(a.getBoolean(R.styleable.ChartView_cacheSeriesLayers, false));
         a.recycle();
 
         setClipToPadding(false);
@@ -81,6 +85,36 @@ public class ChartView extends FrameLayout {
         requestLayout();
     }
 
+    /**
+     * Render any {@link ChartNetworkSeriesView} children into cached layers,
+     * so they are only rasterized again when their path or primary range
+     * changes. Dragging a {@link ChartSweepView} then only redraws the sweep
+     * itself, instead of every series painted underneath it.
+     */
+    public void setCacheSeriesLayers(boolean cacheSeriesLayers) {
+        mCacheSeriesLayers = cacheSeriesLayers;
+        for (int i = 0; i < getChildCount(); i++) {
+            updateChildLayer(getChildAt(i));
+        }
+    }
+
+    @Override
+    protected void onFinishInflate() {
+        super.onFinishInflate();
+        setCacheSeriesLayers(mCacheSeriesLayers);
+    }
+
+    private void updateChildLayer(View child) {
+        // ChartGridView draws its labels outside of its bounds, which a layer
+        // would clip, so only series are cached.
+        if (child instanceof ChartNetworkSeriesView) {
+            // hardware layers quietly fall back to software when the window
+            // isn't accelerated, which still gives us a bitmap cache.
+            child.setLayerType(
+                    mCacheSeriesLayers ? LAYER_TYPE_HARDWARE : LAYER_TYPE_NONE, null);
+        }
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
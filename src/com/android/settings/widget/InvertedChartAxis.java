@@ -19,6 +19,8 @@ package com.android.settings.widget;
 import android.content.res.Resources;
 import android.text.SpannableStringBuilder;
 
+import com.android.internal.util.Objects;
+
 /**
  * Utility to invert another {@link ChartAxis}.
  */
@@ -30,6 +32,11 @@ public class InvertedChartAxis implements ChartAxis {
         mWrapped = wrapped;
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mWrapped, mSize);
+    }
+
     @Override
     public boolean setBounds(long min, long max) {
         return mWrapped.setBounds(min, max);
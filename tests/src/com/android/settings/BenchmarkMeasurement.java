@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Wall time and allocations on the current thread across a number of
+ * iterations of a benchmark, reported through {@link Log}. Work done by
+ * pooled threads shows up in time but not in allocations.
+ */
+public class BenchmarkMeasurement {
+    private final String mTag;
+    private final String mName;
+    private final String mUnit;
+    private long mStartNanos;
+
+    /**
+     * @param tag log tag to report under.
+     * @param name what is measured, leading the reported line.
+     */
+    public BenchmarkMeasurement(String tag, String name) {
+        this(tag, name, "iteration");
+    }
+
+    /**
+     * @param unit what a single iteration is called, such as {@code "frame"}.
+     */
+    public BenchmarkMeasurement(String tag, String name, String unit) {
+        mTag = tag;
+        mName = name;
+        mUnit = unit;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void start() {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        mStartNanos = System.nanoTime();
+    }
+
+    public void stop(int iterations) {
+        stop(iterations, 0, null);
+    }
+
+    /**
+     * Stop measuring, also reporting time per item when each iteration
+     * handles {@code items} of them, such as files.
+     */
+    public void stop(int iterations, int items, String item) {
+        final long elapsedNanos = System.nanoTime() - mStartNanos;
+        final long allocCount = Debug.getThreadAllocCount();
+        final long allocSize = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(mName).append(": ");
+        sb.append(elapsedNanos / iterations / 1000).append("us/").append(mUnit).append(", ");
+        if (item != null) {
+            sb.append(elapsedNanos / iterations / Math.max(1, items)).append("ns/").append(item)
+                    .append(", ");
+        }
+        sb.append(allocCount / iterations).append(" allocs/").append(mUnit).append(", ");
+        sb.append(allocSize / iterations).append(" bytes/").append(mUnit);
+        Log.i(mTag, sb.toString());
+    }
+}
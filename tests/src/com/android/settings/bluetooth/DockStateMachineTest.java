@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Replays sequences of dock and Bluetooth events against
+ * {@link DockStateMachine}, with a fake adapter and clock. Needs nothing from
+ * a device, so it runs on a plain JVM as well.
+ */
+@SmallTest
+public class DockStateMachineTest extends TestCase {
+    private static final String DOCK = "00:11:22:33:44:55";
+    private static final String OTHER_DOCK = "66:77:88:99:AA:BB";
+
+    private static final int CAR = Intent.EXTRA_DOCK_STATE_CAR;
+
+    private FakeEnvironment mEnv;
+    private DockStateMachine mMachine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEnv = new FakeEnvironment();
+        mMachine = new DockStateMachine(mEnv);
+    }
+
+    public void testDockWithSavedSettings() {
+        mEnv.autoConnect.add(DOCK);
+        dock(DOCK, 1);
+
+        assertEquals(DockStateMachine.STATE_DOCKED, mMachine.getState());
+        assertActions("apply " + DOCK, "finish 1");
+    }
+
+    public void testDockAsksUser() {
+        dock(DOCK, 1);
+
+        assertEquals(DockStateMachine.STATE_ASKING_USER, mMachine.getState());
+        assertActions("dialog " + DOCK + " 1");
+        mEnv.actions.clear();
+
+        // Service is kept while the dialog is up
+        post(DockStateMachine.EVENT_SETTINGS_CHOSEN, null, 1, DockStateMachine.NO_START_ID);
+        post(DockStateMachine.EVENT_DIALOG_DISMISSED, null, 1, DockStateMachine.NO_START_ID);
+
+        assertEquals(DockStateMachine.STATE_DOCKED, mMachine.getState());
+        assertActions("apply " + DOCK, "finish 1");
+    }
+
+    public void testDialogDismissedWithoutChoosing() {
+        dock(DOCK, 1);
+        mEnv.actions.clear();
+        post(DockStateMachine.EVENT_DIALOG_DISMISSED, null, 1, DockStateMachine.NO_START_ID);
+
+        assertEquals(DockStateMachine.STATE_DOCKED, mMachine.getState());
+        assertActions("finish 1");
+    }
+
+    public void testDockWaitsForProfiles() {
+        mEnv.autoConnect.add(DOCK);
+        mEnv.profilesReady = false;
+        dock(DOCK, 1);
+
+        assertEquals(DockStateMachine.STATE_WAITING_FOR_PROFILES, mMachine.getState());
+        assertActions();
+
+        mEnv.profilesReady = true;
+        post(DockStateMachine.EVENT_PROFILES_READY, null, 0, DockStateMachine.NO_START_ID);
+        assertActions("apply " + DOCK, "finish 1");
+    }
+
+    public void testDockEnablesBluetooth() {
+        mEnv.autoConnect.add(DOCK);
+        mEnv.btState = BluetoothAdapter.STATE_OFF;
+        dock(DOCK, 1);
+
+        assertEquals(DockStateMachine.STATE_ENABLING_BT, mMachine.getState());
+        assertActions("enable");
+        assertTrue(mEnv.getFlag(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED));
+
+        mEnv.btState = BluetoothAdapter.STATE_ON;
+        post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, BluetoothAdapter.STATE_ON, 2);
+        assertEquals(DockStateMachine.STATE_DOCKED, mMachine.getState());
+        assertActions("enable", "apply " + DOCK, "finish 2");
+    }
+
+    public void testUndockDisconnectsAfterGracePeriod() {
+        mEnv.autoConnect.add(DOCK);
+        dock(DOCK, 1);
+        mEnv.actions.clear();
+
+        undock(DOCK, 2);
+        assertActions();
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD - 1);
+        assertActions();
+        advance(1);
+
+        assertEquals(DockStateMachine.STATE_UNDOCKED, mMachine.getState());
+        assertActions("disconnect " + DOCK, "finish 2");
+    }
+
+    public void testRedockWithinGracePeriodKeepsConnection() {
+        mEnv.autoConnect.add(DOCK);
+        dock(DOCK, 1);
+        mEnv.actions.clear();
+
+        undock(DOCK, 2);
+        advance(500);
+        dock(DOCK, 3);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+
+        assertEquals(DockStateMachine.STATE_DOCKED, mMachine.getState());
+        assertActions("finish 3");
+    }
+
+    public void testQueuedDockSupersededByUndock() {
+        mEnv.autoConnect.add(DOCK);
+        // Both arrive before the machine gets to run
+        post(DockStateMachine.EVENT_DOCKED, DOCK, CAR, 1, false);
+        post(DockStateMachine.EVENT_UNDOCKED, DOCK, 0, 2, false);
+        mMachine.process();
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+
+        assertEquals(DockStateMachine.STATE_UNDOCKED, mMachine.getState());
+        // Never connected
+        assertActions("disconnect " + DOCK, "finish 2");
+    }
+
+    public void testDockInOtherDockUndocksFirst() {
+        mEnv.autoConnect.add(DOCK);
+        mEnv.autoConnect.add(OTHER_DOCK);
+        dock(DOCK, 1);
+        dock(OTHER_DOCK, 2);
+
+        assertEquals(OTHER_DOCK, mMachine.getDockAddress());
+        assertActions("apply " + DOCK, "finish 1", "disconnect " + DOCK,
+                "apply " + OTHER_DOCK, "finish 2");
+    }
+
+    public void testUndockDuringDialogDismissesIt() {
+        dock(DOCK, 1);
+        undock(DOCK, 2);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+        // Dismissing posts a stale event
+        post(DockStateMachine.EVENT_DIALOG_DISMISSED, null, 1, DockStateMachine.NO_START_ID);
+
+        assertEquals(DockStateMachine.STATE_UNDOCKED, mMachine.getState());
+        assertActions("dialog " + DOCK + " 1", "dismiss", "disconnect " + DOCK, "finish 2");
+    }
+
+    public void testUndockDisablesBluetoothEnabledForDock() {
+        mEnv.autoConnect.add(DOCK);
+        mEnv.btState = BluetoothAdapter.STATE_OFF;
+        dock(DOCK, 1);
+        mEnv.btState = BluetoothAdapter.STATE_ON;
+        post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, BluetoothAdapter.STATE_ON, 2);
+        mEnv.actions.clear();
+
+        undock(DOCK, 3);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+        assertActions("disconnect " + DOCK);
+        advance(DockStateMachine.DISABLE_BT_GRACE_PERIOD);
+
+        assertActions("disconnect " + DOCK, "disable", "finish 3");
+        assertFalse(mEnv.getFlag(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED));
+    }
+
+    public void testUndockKeepsBluetoothForOtherDevices() {
+        mEnv.flags.put(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED, true);
+        mEnv.otherDevicesConnected = true;
+        undock(DOCK, 1);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD + DockStateMachine.DISABLE_BT_GRACE_PERIOD);
+
+        assertActions("disconnect " + DOCK, "finish 1");
+        assertFalse(mEnv.getFlag(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED));
+    }
+
+    public void testRedockCancelsDisablingBluetooth() {
+        mEnv.autoConnect.add(DOCK);
+        mEnv.flags.put(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED, true);
+        undock(DOCK, 1);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+        dock(DOCK, 2);
+        advance(DockStateMachine.DISABLE_BT_GRACE_PERIOD);
+
+        assertActions("disconnect " + DOCK, "apply " + DOCK, "finish 2");
+    }
+
+    public void testFailedDisableRetriedWhenBluetoothOn() {
+        mEnv.flags.put(DockStateMachine.FLAG_DISABLE_BT_WHEN_UNDOCKED, true);
+        mEnv.disableSucceeds = false;
+        undock(DOCK, 1);
+        advance(DockStateMachine.UNDOCKED_GRACE_PERIOD);
+        advance(DockStateMachine.DISABLE_BT_GRACE_PERIOD);
+
+        // Service is kept until Bluetooth is off
+        assertActions("disconnect " + DOCK, "disable");
+        assertTrue(mEnv.getFlag(DockStateMachine.FLAG_DISABLE_BT));
+
+        mEnv.disableSucceeds = true;
+        post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, BluetoothAdapter.STATE_ON, 2);
+        post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, BluetoothAdapter.STATE_OFF, 3);
+
+        assertActions("disconnect " + DOCK, "disable", "disable", "finish 3");
+        assertFalse(mEnv.getFlag(DockStateMachine.FLAG_DISABLE_BT));
+    }
+
+    public void testBluetoothOnReconnectsDock() {
+        mEnv.dockedAddress = DOCK;
+        post(DockStateMachine.EVENT_BT_STATE_CHANGED, null, BluetoothAdapter.STATE_ON, 1);
+
+        assertActions("connect " + DOCK, "finish 1");
+    }
+
+    public void testUnexpectedDisconnectReconnectsWhileDocked() {
+        mEnv.dockedAddress = DOCK;
+        post(DockStateMachine.EVENT_PROFILE_DISCONNECTED, DOCK,
+                DockStateMachine.PROFILE_A2DP, 1);
+        mEnv.dockedAddress = null;
+        post(DockStateMachine.EVENT_PROFILE_DISCONNECTED, DOCK,
+                DockStateMachine.PROFILE_HEADSET, 2);
+
+        assertActions("connect " + DOCK + " " + DockStateMachine.PROFILE_A2DP, "finish 1",
+                "finish 2");
+    }
+
+    private void dock(String address, int startId) {
+        post(DockStateMachine.EVENT_DOCKED, address, CAR, startId);
+    }
+
+    private void undock(String address, int startId) {
+        post(DockStateMachine.EVENT_UNDOCKED, address, 0, startId);
+    }
+
+    private void post(int type, String address, int arg, int startId) {
+        post(type, address, arg, startId, true);
+    }
+
+    private void post(int type, String address, int arg, int startId, boolean process) {
+        mMachine.post(type, address, arg, startId);
+        if (process) {
+            mMachine.process();
+        }
+    }
+
+    private void advance(long millis) {
+        mEnv.now += millis;
+        mMachine.process();
+    }
+
+    private void assertActions(String... expected) {
+        assertEquals(Arrays.asList(expected), mEnv.actions);
+    }
+
+    /**
+     * Records what the state machine does, with a clock moved by the test.
+     */
+    private static class FakeEnvironment implements DockStateMachine.Environment {
+        final List<String> actions = new ArrayList<String>();
+        final HashMap<String, Boolean> flags = new HashMap<String, Boolean>();
+        final HashSet<String> autoConnect = new HashSet<String>();
+
+        long now = 1000;
+        int btState = BluetoothAdapter.STATE_ON;
+        boolean disableSucceeds = true;
+        boolean profilesReady = true;
+        boolean otherDevicesConnected;
+        String dockedAddress;
+
+        public long uptimeMillis() {
+            return now;
+        }
+
+        public void scheduleProcessing(long when) {
+            // The test calls process() as it moves the clock
+        }
+
+        public int getBluetoothState() {
+            return btState;
+        }
+
+        public boolean enableBluetooth() {
+            // Enabling is requested even when on, only record when it matters
+            if (btState != BluetoothAdapter.STATE_ON) {
+                actions.add("enable");
+            }
+            return true;
+        }
+
+        public boolean disableBluetooth() {
+            actions.add("disable");
+            return disableSucceeds;
+        }
+
+        public boolean isProfileManagerReady() {
+            return profilesReady;
+        }
+
+        public boolean hasOtherConnectedDevices(String dockAddress) {
+            return otherDevicesConnected;
+        }
+
+        public String getDockedAddress() {
+            return dockedAddress;
+        }
+
+        public boolean getFlag(String key) {
+            return flags.containsKey(key) && flags.get(key);
+        }
+
+        public void setFlag(String key, boolean value) {
+            flags.put(key, value);
+        }
+
+        public boolean getAutoConnectSetting(String address) {
+            return autoConnect.contains(address);
+        }
+
+        public void loadSavedSettings(String address, int dockState) {
+        }
+
+        public boolean hasEnabledProfiles() {
+            return true;
+        }
+
+        public void showSettingsDialog(String address, int dockState, int dialogId) {
+            actions.add("dialog " + address + " " + dialogId);
+        }
+
+        public void dismissSettingsDialog() {
+            actions.add("dismiss");
+        }
+
+        public void applySettings(String address) {
+            actions.add("apply " + address);
+        }
+
+        public void connectIfAutoConnect(String address) {
+            actions.add("connect " + address);
+        }
+
+        public void connectProfile(String address, int profile) {
+            actions.add("connect " + address + " " + profile);
+        }
+
+        public void disconnect(String address) {
+            actions.add("disconnect " + address);
+        }
+
+        public void finishStartId(int startId) {
+            actions.add("finish " + startId);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of signal strength buckets used to sort {@link BluetoothDevicePreference}.
+ */
+@SmallTest
+public class RssiBucketTest extends AndroidTestCase {
+    private static final int NONE = BluetoothDevicePreference.NO_RSSI_BUCKET;
+
+    public void testFirstBucket() {
+        assertEquals(-6, bucket(NONE, -60));
+        assertEquals(-6, bucket(NONE, -51));
+        assertEquals(-5, bucket(NONE, -50));
+        assertEquals(0, bucket(NONE, 0));
+    }
+
+    public void testStronger() {
+        assertEquals(-6, bucket(-6, -48));
+        assertEquals(-5, bucket(-6, -47));
+        assertEquals(-3, bucket(-6, -25));
+    }
+
+    public void testWeaker() {
+        assertEquals(-6, bucket(-6, -63));
+        assertEquals(-7, bucket(-6, -64));
+        assertEquals(-9, bucket(-6, -85));
+    }
+
+    public void testNoiseAroundEdge() {
+        int current = bucket(NONE, -50);
+        for (int rssi : new int[] { -52, -49, -53, -47, -51, -50 }) {
+            current = bucket(current, rssi);
+            assertEquals(-5, current);
+        }
+    }
+
+    private static int bucket(int current, int rssi) {
+        return BluetoothDevicePreference.getRssiBucket(current, (short) rssi);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.ConditionVariable;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.BenchmarkMeasurement;
+
+import libcore.io.ErrnoException;
+import libcore.io.IoUtils;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Benchmark of misc file measurement and deletion, run against synthetic
+ * directory trees generated in the cache directory of the test: many small
+ * files, a few huge files, and deep nesting. Each tree is measured by a
+ * sequential recursive walk, as {@code DefaultContainerService} does, and by
+ * {@link DirectoryWalker} sequentially, in parallel, and in parallel with a
+ * warm {@link StorageMeasurementCache}. Then it's deleted by
+ * {@link FileDeleter}, the way {@link MiscFilesHandler} does.
+ * <p>
+ * Results are logged as time per file through {@link BenchmarkMeasurement},
+ * followed by the {@code lstat()}, directory listing and {@code remove()}
+ * calls actually made per file, for example:
+ * <pre>
+ * adb shell am instrument -w -e class com.android.settings.deviceinfo.StorageMeasurementBenchmark \
+ *         com.android.settings.tests/android.test.InstrumentationTestRunner
+ * adb logcat -s StorageMeasurementBenchmark
+ * </pre>
+ */
+@LargeTest
+public class StorageMeasurementBenchmark extends AndroidTestCase {
+    private static final String TAG = "StorageMeasurementBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 10;
+
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+
+    private static final long BYTES_PER_BLOCK = 512;
+
+    /** Directories and files older than this are settled enough to be cached. */
+    private static final long BACKDATE_MS = 2 * 60 * 60 * 1000;
+
+    /** Volume path the cache of each tree is saved under. */
+    private static final String CACHE_PREFIX = "/benchmark/";
+
+    private File mRoot;
+    private final byte[] mBuffer = new byte[64 * KB];
+
+    private int mFileCount;
+    private int mDirCount;
+
+    /** Calls made by {@link #calculateDirectorySize}. */
+    private int mStatCount;
+    private int mListCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "storage_benchmark");
+        deleteQuietly(mRoot);
+        assertTrue(mRoot.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteQuietly(mRoot);
+        final File[] caches = new File(getContext().getFilesDir(), "storage_measurement")
+                .listFiles();
+        if (caches != null) {
+            for (File cache : caches) {
+                if (cache.getName().startsWith(CACHE_PREFIX.replace('/', '_'))) {
+                    cache.delete();
+                }
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testSmallFiles() throws Exception {
+        // 8 top level directories of 25 directories with 40 small files
+        final File[] tops = generateTops(8);
+        for (File top : tops) {
+            for (int i = 0; i < 25; i++) {
+                final File dir = mkdir(top, "dir" + i);
+                for (int j = 0; j < 40; j++) {
+                    writeFile(new File(dir, "file" + j), 1 + (i * j) % 4 * KB);
+                }
+            }
+        }
+        benchmarkTree("small", tops);
+    }
+
+    public void testHugeFiles() throws Exception {
+        // 4 top level directories with a single huge file each
+        final File[] tops = generateTops(4);
+        for (File top : tops) {
+            writeFile(new File(top, "huge"), 16 * MB);
+        }
+        benchmarkTree("huge", tops);
+    }
+
+    public void testDeepNesting() throws Exception {
+        // 2 top level directories with a chain 100 directories deep
+        final File[] tops = generateTops(2);
+        for (File top : tops) {
+            File dir = top;
+            for (int i = 0; i < 100; i++) {
+                dir = mkdir(dir, "level" + i);
+                for (int j = 0; j < 3; j++) {
+                    writeFile(new File(dir, "file" + j), 4 * KB);
+                }
+            }
+        }
+        benchmarkTree("deep", tops);
+    }
+
+    private void benchmarkTree(String name, File[] tops) throws Exception {
+        final String[] paths = new String[tops.length];
+        for (int i = 0; i < tops.length; i++) {
+            paths[i] = tops[i].getAbsolutePath();
+            backdate(tops[i]);
+        }
+        final int dirCount = mDirCount + tops.length;
+        Log.i(TAG, name + ": " + mFileCount + " files in " + dirCount + " directories");
+
+        final BenchmarkMeasurement recursive = new BenchmarkMeasurement(TAG, name + " recursive");
+        long[] expected = null;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) {
+                mStatCount = 0;
+                mListCount = 0;
+                recursive.start();
+            }
+            expected = new long[paths.length];
+            for (int j = 0; j < paths.length; j++) {
+                expected[j] = calculateDirectorySize(paths[j]);
+            }
+        }
+        recursive.stop(ITERATIONS, mFileCount, "file");
+        logCalls(recursive.getName(), ITERATIONS, mStatCount, mListCount, 0);
+
+        benchmarkWalker(name + " walker sequential", paths, expected, 1, null);
+        benchmarkWalker(name + " walker parallel", paths, expected, Integer.MAX_VALUE, null);
+
+        // first walk fills the cache, later walks only lstat() each directory
+        final StorageMeasurementCache cache = StorageMeasurementCache.load(getContext(),
+                CACHE_PREFIX + name);
+        benchmarkWalker(name + " walker cached", paths, expected, Integer.MAX_VALUE, cache);
+
+        final BenchmarkMeasurement delete = new BenchmarkMeasurement(TAG, name + " delete");
+        final ConditionVariable finished = new ConditionVariable();
+        final boolean[][] deleted = new boolean[1][];
+        final long[][] freedSizes = new long[1][];
+        delete.start();
+        final FileDeleter deleter = new FileDeleter(paths, new FileDeleter.Listener() {
+            @Override
+            public void onProgress(long freedSize) {
+            }
+
+            @Override
+            public void onFinished(boolean[] d, long[] f) {
+                deleted[0] = d;
+                freedSizes[0] = f;
+                finished.open();
+            }
+        });
+        deleter.start();
+        finished.block();
+        delete.stop(1, mFileCount, "file");
+        logCalls(delete.getName(), 1, deleter.getStatCount(), deleter.getListCount(),
+                deleter.getRemoveCount());
+
+        for (int i = 0; i < paths.length; i++) {
+            assertTrue(paths[i], deleted[0][i]);
+            assertFalse(paths[i], tops[i].exists());
+            // deleting also frees the block of each top level directory itself
+            assertTrue(paths[i], freedSizes[0][i] >= expected[i]);
+        }
+    }
+
+    private void benchmarkWalker(String name, String[] paths, long[] expected,
+            int parallelism, StorageMeasurementCache cache) {
+        final BenchmarkMeasurement m = new BenchmarkMeasurement(TAG, name);
+        int statCount = 0;
+        int listCount = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) m.start();
+            if (cache != null) cache.beginUpdate();
+            final DirectoryWalker walker = new DirectoryWalker(parallelism, null, cache);
+            assertSizes(name, expected, walker.measure(paths));
+            if (cache != null) cache.commitUpdate(0, 0, 0, 0, 0, new long[0], null);
+            if (i >= WARMUP_ITERATIONS) {
+                statCount += walker.getStatCount();
+                listCount += walker.getListCount();
+            }
+        }
+        m.stop(ITERATIONS, mFileCount, "file");
+        logCalls(name, ITERATIONS, statCount, listCount, 0);
+    }
+
+    /**
+     * Size of everything under the given directory, walked recursively on
+     * the calling thread.
+     */
+    private long calculateDirectorySize(String path) {
+        mListCount++;
+        final String[] names = new File(path).list();
+        if (names == null) return 0;
+
+        long size = 0;
+        for (String name : names) {
+            final String child = path + "/" + name;
+            final StructStat stat;
+            mStatCount++;
+            try {
+                stat = Libcore.os.lstat(child);
+            } catch (ErrnoException e) {
+                continue;
+            }
+            size += stat.st_blocks * BYTES_PER_BLOCK;
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                size += calculateDirectorySize(child);
+            }
+        }
+        return size;
+    }
+
+    private static void assertSizes(String name, long[] expected, long[] actual) {
+        assertNotNull(name, actual);
+        assertEquals(name, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(name + " tree " + i, expected[i], actual[i]);
+        }
+    }
+
+    private File[] generateTops(int count) {
+        mFileCount = 0;
+        mDirCount = 0;
+        final File[] tops = new File[count];
+        for (int i = 0; i < count; i++) {
+            tops[i] = new File(mRoot, "top" + i);
+            assertTrue(tops[i].mkdir());
+        }
+        return tops;
+    }
+
+    private File mkdir(File parent, String name) {
+        final File dir = new File(parent, name);
+        assertTrue(dir.mkdir());
+        mDirCount++;
+        return dir;
+    }
+
+    private void writeFile(File file, int size) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            int remaining = size;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, mBuffer.length);
+                out.write(mBuffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        mFileCount++;
+    }
+
+    /**
+     * Move modification time of everything under the given directory into
+     * the past, so {@link StorageMeasurementCache} considers it settled.
+     */
+    private static void backdate(File dir) {
+        final long time = System.currentTimeMillis() - BACKDATE_MS;
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    backdate(child);
+                } else {
+                    child.setLastModified(time);
+                }
+            }
+        }
+        dir.setLastModified(time);
+    }
+
+    private static void deleteQuietly(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteQuietly(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Log the given numbers of calls made over all iterations, per iteration
+     * and file. Listing a directory takes several system calls itself.
+     */
+    private void logCalls(String name, int iterations, int statCount, int listCount,
+            int removeCount) {
+        final double perFile = iterations * (double) Math.max(1, mFileCount);
+        final StringBuilder sb = new StringBuilder(name).append(": ");
+        sb.append(String.format("%.2f lstat/file, %.2f list/file", statCount / perFile,
+                listCount / perFile));
+        if (removeCount > 0) {
+            sb.append(String.format(", %.2f remove/file", removeCount / perFile));
+        }
+        Log.i(TAG, sb.toString());
+    }
+}
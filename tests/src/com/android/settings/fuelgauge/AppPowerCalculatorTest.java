@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.os.Parcel;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.SparseArray;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+
+import java.util.Map;
+
+/**
+ * Replays a recorded {@link BatteryStatsImpl} parcel through both
+ * {@link AppPowerCalculator} and the original sequential power model, and
+ * verifies every per-UID result is bit-identical.
+ */
+public class AppPowerCalculatorTest extends AndroidTestCase {
+    private static final double AVERAGE_COST_PER_BYTE = 0.0000123;
+
+    private byte[] mRecorded;
+    private PowerProfile mPowerProfile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final IBatteryStats batteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mRecorded = batteryInfo.getStatistics();
+        mPowerProfile = new PowerProfile(getContext());
+    }
+
+    public void testSinceCharged() {
+        assertReplayIdentical(BatteryStats.STATS_SINCE_CHARGED);
+    }
+
+    public void testSinceUnplugged() {
+        assertReplayIdentical(BatteryStats.STATS_SINCE_UNPLUGGED);
+    }
+
+    public void testRepeatedComputeStable() {
+        final BatteryStatsImpl stats = replay(mRecorded);
+        final long uSecTime = stats.computeBatteryRealtime(
+                SystemClock.elapsedRealtime() * 1000, BatteryStats.STATS_SINCE_CHARGED);
+        final AppPowerCalculator calculator = new AppPowerCalculator(getContext(), mPowerProfile);
+
+        final double[] first = calculator.compute(stats, BatteryStats.STATS_SINCE_CHARGED,
+                uSecTime, AVERAGE_COST_PER_BYTE).power.clone();
+        for (int i = 0; i < 10; i++) {
+            final AppPowerCalculator.Result result = calculator.compute(stats,
+                    BatteryStats.STATS_SINCE_CHARGED, uSecTime, AVERAGE_COST_PER_BYTE);
+            for (int iu = 0; iu < result.count; iu++) {
+                assertBitsEqual("uid index " + iu, first[iu], result.power[iu]);
+            }
+        }
+    }
+
+    private void assertReplayIdentical(int which) {
+        // each model gets its own copy, so neither can observe the other
+        final BatteryStatsImpl expectedStats = replay(mRecorded);
+        final BatteryStatsImpl actualStats = replay(mRecorded);
+        final long uSecTime = expectedStats.computeBatteryRealtime(
+                SystemClock.elapsedRealtime() * 1000, which);
+
+        final AppPowerCalculator calculator = new AppPowerCalculator(getContext(), mPowerProfile);
+        final AppPowerCalculator.Result actual = calculator.compute(
+                actualStats, which, uSecTime, AVERAGE_COST_PER_BYTE);
+
+        final SparseArray<? extends Uid> uidStats = expectedStats.getUidStats();
+        assertEquals(uidStats.size(), actual.count);
+
+        final long[] cpuSpeedStepTimes = new long[mPowerProfile.getNumSpeedSteps()];
+        final Expected expected = new Expected();
+        for (int iu = 0; iu < uidStats.size(); iu++) {
+            computeSequential(uidStats.valueAt(iu), which, uSecTime, cpuSpeedStepTimes, expected);
+
+            final String msg = "uid " + uidStats.keyAt(iu);
+            assertBitsEqual(msg, expected.power, actual.power[iu]);
+            assertEquals(msg, expected.packageWithHighestDrain, actual.packageWithHighestDrain[iu]);
+            assertEquals(msg, expected.cpuTime, actual.cpuTime[iu]);
+            assertEquals(msg, expected.cpuFgTime, actual.cpuFgTime[iu]);
+            assertEquals(msg, expected.wakeLockTime, actual.wakeLockTime[iu]);
+            assertEquals(msg, expected.gpsTime, actual.gpsTime[iu]);
+            assertEquals(msg, expected.wifiRunningTime, actual.wifiRunningTime[iu]);
+            assertEquals(msg, expected.tcpBytesReceived, actual.tcpBytesReceived[iu]);
+            assertEquals(msg, expected.tcpBytesSent, actual.tcpBytesSent[iu]);
+        }
+    }
+
+    private static BatteryStatsImpl replay(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            final BatteryStatsImpl stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertBitsEqual(String msg, double expected, double actual) {
+        assertEquals(msg, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    private static class Expected {
+        double power;
+        String packageWithHighestDrain;
+        long cpuTime;
+        long cpuFgTime;
+        long wakeLockTime;
+        long gpsTime;
+        long wifiRunningTime;
+        long tcpBytesReceived;
+        long tcpBytesSent;
+    }
+
+    /**
+     * Per-UID body of the original single-threaded
+     * {@code PowerUsageSummary.processAppUsage()}, kept verbatim as reference.
+     */
+    private void computeSequential(Uid u, int which, long uSecTime, long[] cpuSpeedStepTimes,
+            Expected out) {
+        SensorManager sensorManager = (SensorManager)getContext().getSystemService(
+                Context.SENSOR_SERVICE);
+        final int speedSteps = mPowerProfile.getNumSpeedSteps();
+        final double[] powerCpuNormal = new double[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+        final double averageCostPerByte = AVERAGE_COST_PER_BYTE;
+
+        double power = 0;
+        double highestDrain = 0;
+        String packageWithHighestDrain = null;
+        Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
+        long cpuTime = 0;
+        long cpuFgTime = 0;
+        long wakelockTime = 0;
+        long gpsTime = 0;
+        if (processStats.size() > 0) {
+            for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
+                    : processStats.entrySet()) {
+                Uid.Proc ps = ent.getValue();
+                final long userTime = ps.getUserTime(which);
+                final long systemTime = ps.getSystemTime(which);
+                final long foregroundTime = ps.getForegroundTime(which);
+                cpuFgTime += foregroundTime * 10; // convert to millis
+                final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
+                int totalTimeAtSpeeds = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += cpuSpeedStepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                double processPower = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
+                    processPower += ratio * tmpCpuTime * powerCpuNormal[step];
+                }
+                cpuTime += tmpCpuTime;
+                power += processPower;
+                if (packageWithHighestDrain == null
+                        || packageWithHighestDrain.startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                } else if (highestDrain < processPower
+                        && !ent.getKey().startsWith("*")) {
+                    highestDrain = processPower;
+                    packageWithHighestDrain = ent.getKey();
+                }
+            }
+        }
+        if (cpuFgTime > cpuTime) {
+            cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+        }
+        power /= 1000;
+
+        Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
+        for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
+                : wakelockStats.entrySet()) {
+            Uid.Wakelock wakelock = wakelockEntry.getValue();
+            BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+            if (timer != null) {
+                wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
+            }
+        }
+        wakelockTime /= 1000; // convert to millis
+
+        power += (wakelockTime
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
+
+        long tcpBytesReceived = u.getTcpBytesReceived(which);
+        long tcpBytesSent = u.getTcpBytesSent(which);
+        power += (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
+
+        long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        power += (wifiRunningTimeMs
+                * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
+
+        Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
+        for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
+                : sensorStats.entrySet()) {
+            Uid.Sensor sensor = sensorEntry.getValue();
+            int sensorType = sensor.getHandle();
+            BatteryStats.Timer timer = sensor.getSensorTime();
+            long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
+            double multiplier = 0;
+            switch (sensorType) {
+                case Uid.Sensor.GPS:
+                    multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
+                    gpsTime = sensorTime;
+                    break;
+                default:
+                    android.hardware.Sensor sensorData =
+                            sensorManager.getDefaultSensor(sensorType);
+                    if (sensorData != null) {
+                        multiplier = sensorData.getPower();
+                    }
+            }
+            power += (multiplier * sensorTime) / 1000;
+        }
+
+        out.power = power;
+        out.packageWithHighestDrain = packageWithHighestDrain;
+        out.cpuTime = cpuTime;
+        out.cpuFgTime = cpuFgTime;
+        out.wakeLockTime = wakelockTime;
+        out.gpsTime = gpsTime;
+        out.wifiRunningTime = wifiRunningTimeMs;
+        out.tcpBytesReceived = tcpBytesReceived;
+        out.tcpBytesSent = tcpBytesSent;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.BenchmarkMeasurement;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark and regression check of {@link BatteryUsageModel}, replaying a
+ * corpus of {@link BatteryStatsImpl} parcels against a fixed
+ * {@link PowerProfile}, so results don't depend on the device profile.
+ * <p>
+ * The corpus is the live stats of the device under test, plus any parcels
+ * saved from {@link IBatteryStats#getStatistics()} into
+ * {@link #CORPUS_DIR}. Each saved parcel is replayed with the clocks stored
+ * next to it in a {@code .clock} file, and its sipper list is compared
+ * exactly against the one stored in a {@code .golden} file for each stats
+ * type. Both files are written on the first replay of a parcel, so a
+ * change to the model that alters any result fails on the next run. Delete
+ * the {@code .golden} files to accept an intended change. The live stats
+ * can only be checked for consistency between two replays.
+ * <p>
+ * Results are logged as time and allocations per computation, followed by
+ * the resulting sipper list, for example:
+ * <pre>
+ * adb shell mkdir /data/local/tmp/batterystats
+ * adb shell chmod 777 /data/local/tmp/batterystats
+ * adb push stats.parcel /data/local/tmp/batterystats/
+ * adb shell am instrument -w -e class com.android.settings.fuelgauge.PowerModelBenchmark \
+ *         com.android.settings.tests/android.test.InstrumentationTestRunner
+ * adb logcat -s PowerModelBenchmark
+ * </pre>
+ */
+@LargeTest
+public class PowerModelBenchmark extends AndroidTestCase {
+    private static final String TAG = "PowerModelBenchmark";
+
+    private static final File CORPUS_DIR = new File("/data/local/tmp/batterystats");
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 30;
+
+    private final List<CorpusEntry> mCorpus = new ArrayList<CorpusEntry>();
+
+    /**
+     * Parcel to replay, with the clocks to replay it at. Only parcels saved
+     * in {@link #CORPUS_DIR} have golden results.
+     */
+    private static class CorpusEntry {
+        public final String name;
+        public final byte[] data;
+        public final long elapsedRealtime;
+        public final long uptime;
+        /** Path of golden results without suffix, or {@code null}. */
+        public final File goldenBase;
+
+        public CorpusEntry(String name, byte[] data, long elapsedRealtime, long uptime,
+                File goldenBase) {
+            this.name = name;
+            this.data = data;
+            this.elapsedRealtime = elapsedRealtime;
+            this.uptime = uptime;
+            this.goldenBase = goldenBase;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final IBatteryStats batteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService("batteryinfo"));
+        mCorpus.add(new CorpusEntry("live", batteryInfo.getStatistics(),
+                SystemClock.elapsedRealtime(), SystemClock.uptimeMillis(), null));
+
+        final File[] recorded = CORPUS_DIR.listFiles();
+        if (recorded != null) {
+            for (File file : recorded) {
+                if (!file.getName().endsWith(".parcel")) continue;
+                final long[] clocks = readClocks(new File(file.getPath() + ".clock"));
+                mCorpus.add(new CorpusEntry(file.getName(), readFully(file), clocks[0],
+                        clocks[1], file));
+            }
+        }
+    }
+
+    public void testSinceCharged() throws IOException {
+        benchmarkCorpus(BatteryStats.STATS_SINCE_CHARGED);
+    }
+
+    public void testSinceUnplugged() throws IOException {
+        benchmarkCorpus(BatteryStats.STATS_SINCE_UNPLUGGED);
+    }
+
+    private void benchmarkCorpus(int which) throws IOException {
+        for (CorpusEntry entry : mCorpus) {
+            benchmarkParcel(entry, which);
+        }
+    }
+
+    private void benchmarkParcel(CorpusEntry entry, int which) throws IOException {
+        final String name = entry.name + "[" + which + "]";
+        final byte[] data = entry.data;
+        final long elapsedRealtime = entry.elapsedRealtime;
+        final long uptime = entry.uptime;
+        final Context context = getContext();
+        final FixedPowerProfile profile = new FixedPowerProfile(context);
+
+        // unparcel is what each refresh pays before the model even runs
+        final BenchmarkMeasurement unparcel = new BenchmarkMeasurement(TAG, name + " unparcel");
+        BatteryStatsImpl stats = null;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) unparcel.start();
+            stats = replay(data);
+        }
+        unparcel.stop(ITERATIONS);
+
+        final AppPowerCalculator calculator = new AppPowerCalculator(context, profile);
+        final long uSecTime = stats.computeBatteryRealtime(elapsedRealtime * 1000, which);
+        final BenchmarkMeasurement apps = new BenchmarkMeasurement(TAG, name + " apps");
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) apps.start();
+            calculator.compute(stats, which, uSecTime, 0);
+        }
+        apps.stop(ITERATIONS);
+
+        final BatteryUsageModel model = new BatteryUsageModel(context, profile);
+        final BenchmarkMeasurement full = new BenchmarkMeasurement(TAG, name + " model");
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) full.start();
+            model.compute(stats, which, elapsedRealtime, uptime);
+        }
+        full.stop(ITERATIONS);
+
+        final double[] expected = logSippers(name, model);
+
+        // a separate replay of the same parcel must agree exactly
+        final BatteryUsageModel other = new BatteryUsageModel(context, profile);
+        other.compute(replay(data), which, elapsedRealtime, uptime);
+        final List<BatterySipper> actual = other.getUsageList();
+        assertEquals(name, expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(name + " sipper " + i, Double.doubleToRawLongBits(expected[i]),
+                    Double.doubleToRawLongBits(actual.get(i).getSortValue()));
+        }
+        assertEquals(Double.doubleToRawLongBits(model.getTotalPower()),
+                Double.doubleToRawLongBits(other.getTotalPower()));
+
+        if (entry.goldenBase != null) {
+            checkGolden(name, new File(entry.goldenBase.getPath() + "." + which + ".golden"),
+                    model.getTotalPower(), expected);
+        }
+    }
+
+    /**
+     * Compare the given results exactly against those stored in the given
+     * file, or store them there if there are none yet.
+     */
+    private static void checkGolden(String name, File file, double totalPower, double[] values)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(totalPower).append('\n');
+        for (double value : values) {
+            sb.append(value).append('\n');
+        }
+
+        if (!file.exists()) {
+            if (writeQuietly(file, sb.toString())) {
+                Log.i(TAG, name + ": recorded golden results in " + file);
+            }
+            return;
+        }
+
+        final String[] golden = readString(file).split("\n");
+        assertEquals(name + " golden sipper count", golden.length - 1, values.length);
+        assertEquals(name + " golden total", Double.doubleToRawLongBits(
+                Double.parseDouble(golden[0])), Double.doubleToRawLongBits(totalPower));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(name + " golden sipper " + i, Double.doubleToRawLongBits(
+                    Double.parseDouble(golden[i + 1])), Double.doubleToRawLongBits(values[i]));
+        }
+    }
+
+    /**
+     * Return elapsed realtime and uptime stored in the given file, storing
+     * the current clocks there first if there are none yet.
+     */
+    private static long[] readClocks(File file) throws IOException {
+        if (!file.exists()) {
+            final long[] clocks = { SystemClock.elapsedRealtime(), SystemClock.uptimeMillis() };
+            if (writeQuietly(file, clocks[0] + " " + clocks[1] + "\n")) {
+                Log.i(TAG, "recorded replay clocks in " + file);
+            }
+            return clocks;
+        }
+        final String[] values = readString(file).trim().split(" ");
+        return new long[] { Long.parseLong(values[0]), Long.parseLong(values[1]) };
+    }
+
+    /**
+     * Log sipper list of the given model, returning its values in order.
+     */
+    private static double[] logSippers(String name, BatteryUsageModel model) {
+        final List<BatterySipper> sippers = model.getUsageList();
+        final double[] values = new double[sippers.size()];
+        double sum = 0;
+        Log.i(TAG, name + ": " + sippers.size() + " sippers, total " + model.getTotalPower()
+                + ", max " + model.getMaxPower());
+        for (int i = 0; i < sippers.size(); i++) {
+            final BatterySipper sipper = sippers.get(i);
+            values[i] = sipper.getSortValue();
+            sum += values[i];
+            final String label = sipper.uidObj != null
+                    ? sipper.drainType + " uid " + sipper.uidObj.getUid()
+                    : sipper.drainType.toString();
+            Log.i(TAG, "  " + label + " (" + sipper.name + "): " + values[i]);
+        }
+
+        // wifi and bluetooth uids are folded into their subsystem entries
+        assertEquals(name, model.getTotalPower(), sum, Math.abs(sum) * 1e-9);
+        return values;
+    }
+
+    private static BatteryStatsImpl replay(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            final BatteryStatsImpl stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            return Streams.readFully(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static String readString(File file) throws IOException {
+        return new String(readFully(file), "UTF-8");
+    }
+
+    /**
+     * Write the given file, logging instead of failing when the corpus
+     * directory isn't writable.
+     */
+    private static boolean writeQuietly(File file, String contents) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(contents.getBytes("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write " + file + ", results aren't checked", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * {@link PowerProfile} with fixed values, roughly those of a current
+     * handset, so replays are comparable across devices.
+     */
+    private static class FixedPowerProfile extends PowerProfile {
+        private static final double[] CPU_ACTIVE = { 100, 150, 200, 250 };
+        private static final double[] RADIO_ON = { 3.5, 3, 2.5, 2, 1.5 };
+
+        public FixedPowerProfile(Context context) {
+            super(context);
+        }
+
+        @Override
+        public int getNumSpeedSteps() {
+            return CPU_ACTIVE.length;
+        }
+
+        @Override
+        public double getAveragePower(String type, int level) {
+            if (POWER_CPU_ACTIVE.equals(type)) {
+                return CPU_ACTIVE[Math.min(level, CPU_ACTIVE.length - 1)];
+            } else if (POWER_RADIO_ON.equals(type)) {
+                return RADIO_ON[Math.min(level, RADIO_ON.length - 1)];
+            } else {
+                return getAveragePower(type);
+            }
+        }
+
+        @Override
+        public double getAveragePower(String type) {
+            if (POWER_SCREEN_ON.equals(type)) return 100;
+            if (POWER_SCREEN_FULL.equals(type)) return 250;
+            if (POWER_CPU_IDLE.equals(type)) return 3;
+            if (POWER_CPU_AWAKE.equals(type)) return 50;
+            if (POWER_CPU_ACTIVE.equals(type)) return CPU_ACTIVE[0];
+            if (POWER_WIFI_ON.equals(type)) return 3;
+            if (POWER_WIFI_ACTIVE.equals(type)) return 200;
+            if (POWER_RADIO_ON.equals(type)) return RADIO_ON[0];
+            if (POWER_RADIO_SCANNING.equals(type)) return 80;
+            if (POWER_RADIO_ACTIVE.equals(type)) return 185;
+            if (POWER_GPS_ON.equals(type)) return 50;
+            if (POWER_BLUETOOTH_ON.equals(type)) return 1;
+            if (POWER_BLUETOOTH_AT_CMD.equals(type)) return 2;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkTemplate.MATCH_MOBILE_ALL;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of the {@link DataUsageExport} format, written and read back through
+ * plain streams, and of exporting from a fake {@link INetworkStatsSession}.
+ */
+@SmallTest
+public class DataUsageExportTest extends TestCase {
+    private static final long TEST_START = 1000 * HOUR_IN_MILLIS;
+    private static final String TEST_SUBSCRIBER = "310260000000000";
+
+    private static final int UID_RED = 10001;
+    private static final int UID_BLUE = 10002;
+
+    private static final int UID_GREEN = 10003;
+
+    private NetworkStatsHistory mRed;
+    private NetworkStatsHistory mBlue;
+
+    private NetworkTemplate mTemplate;
+    private FakeSession mSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mRed = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        mRed.recordData(TEST_START, TEST_START + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 8L, 512L, 4L, 0L));
+        mRed.recordData(TEST_START + 3 * HOUR_IN_MILLIS, TEST_START + 4 * HOUR_IN_MILLIS,
+                new NetworkStats.Entry(2048L, 16L, 0L, 0L, 0L));
+
+        mBlue = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        mBlue.recordData(TEST_START + HOUR_IN_MILLIS, TEST_START + 2 * HOUR_IN_MILLIS,
+                new NetworkStats.Entry(0L, 0L, 4096L, 32L, 0L));
+
+        mTemplate = NetworkTemplate.buildTemplateMobileAll(TEST_SUBSCRIBER);
+        mSession = new FakeSession();
+        mSession.putHistory(UID_RED, SET_DEFAULT, mRed);
+        mSession.putHistory(UID_BLUE, SET_FOREGROUND, mBlue);
+    }
+
+    public void testRoundTrip() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeChunk(out, TEST_SUBSCRIBER, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS);
+
+        final RecordingVisitor visitor = new RecordingVisitor();
+        assertEquals(1, DataUsageExport.read(new ByteArrayInputStream(out.toByteArray()), visitor));
+
+        assertEquals(Arrays.asList(
+                "chunk " + MATCH_MOBILE_ALL + " " + TEST_SUBSCRIBER,
+                bucket(UID_RED, SET_DEFAULT, TEST_START, 1024, 8, 512, 4),
+                bucket(UID_RED, SET_DEFAULT, TEST_START + 3 * HOUR_IN_MILLIS, 2048, 16, 0, 0),
+                bucket(UID_BLUE, SET_FOREGROUND, TEST_START + HOUR_IN_MILLIS, 0, 0, 4096, 32)),
+                visitor.events);
+    }
+
+    public void testRangeExcludesOutsideBuckets() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeChunk(out, TEST_SUBSCRIBER, TEST_START + 3 * HOUR_IN_MILLIS,
+                TEST_START + 4 * HOUR_IN_MILLIS);
+
+        final RecordingVisitor visitor = new RecordingVisitor();
+        DataUsageExport.read(new ByteArrayInputStream(out.toByteArray()), visitor);
+
+        assertEquals(2, visitor.events.size());
+        assertEquals(bucket(UID_RED, SET_DEFAULT, TEST_START + 3 * HOUR_IN_MILLIS, 2048, 16, 0, 0),
+                visitor.events.get(1));
+    }
+
+    public void testLargeValuesAndMissingSubscriber() throws Exception {
+        // values spanning many varint bytes, small enough for recordData() to scale
+        final NetworkStatsHistory huge = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        huge.recordData(TEST_START, TEST_START + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(1L << 40, 1L, 1L << 32, 0L, 0L));
+
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        final DataOutputStream out = DataUsageExport.beginChunk(
+                raw, MATCH_MOBILE_ALL, null, TEST_START, TEST_START + HOUR_IN_MILLIS);
+        DataUsageExport.writeHistory(
+                out, UID_RED, SET_DEFAULT, huge, TEST_START, TEST_START + HOUR_IN_MILLIS);
+        DataUsageExport.endChunk(out);
+
+        final RecordingVisitor visitor = new RecordingVisitor();
+        assertEquals(1, DataUsageExport.read(new ByteArrayInputStream(raw.toByteArray()), visitor));
+        assertEquals(Arrays.asList(
+                "chunk " + MATCH_MOBILE_ALL + " null",
+                bucket(UID_RED, SET_DEFAULT, TEST_START, 1L << 40, 1, 1L << 32, 0)),
+                visitor.events);
+    }
+
+    public void testAppendAndTruncatedTail() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeChunk(out, TEST_SUBSCRIBER, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS);
+        final int firstLength = out.size();
+        writeChunk(out, TEST_SUBSCRIBER, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS);
+
+        // both appended chunks read back
+        RecordingVisitor visitor = new RecordingVisitor();
+        assertEquals(2, DataUsageExport.read(new ByteArrayInputStream(out.toByteArray()), visitor));
+        assertEquals(8, visitor.events.size());
+
+        // interrupted second export leaves first chunk intact
+        final byte[] truncated = Arrays.copyOf(out.toByteArray(), firstLength + 20);
+        visitor = new RecordingVisitor();
+        assertEquals(1, DataUsageExport.read(new ByteArrayInputStream(truncated), visitor));
+    }
+
+    public void testSessionExportMatchesStreams() throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeChunk(expected, TEST_SUBSCRIBER, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataUsageExport.export(
+                mSession, mTemplate, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS, out);
+        assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+    }
+
+    public void testSessionExportSkipsTagsAndMissingHistory() throws Exception {
+        // tagged usage is counted within the untagged row of the same uid
+        mSession.putTag(UID_RED, SET_DEFAULT, 0x1);
+        mSession.putHistory(UID_GREEN, SET_DEFAULT, null);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataUsageExport.export(
+                mSession, mTemplate, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS, out);
+
+        final RecordingVisitor visitor = new RecordingVisitor();
+        assertEquals(1, DataUsageExport.read(new ByteArrayInputStream(out.toByteArray()), visitor));
+        assertEquals(4, visitor.events.size());
+        assertEquals(Arrays.asList(UID_RED, UID_BLUE, UID_GREEN), mSession.requestedUids);
+    }
+
+    public void testFailedFileExportLeavesEarlierChunks() throws Exception {
+        final File file = File.createTempFile("data_usage", ".dux");
+        try {
+            DataUsageExport.export(
+                    mSession, mTemplate, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS, file);
+            final long firstLength = file.length();
+
+            // enough records ahead of the failure that some reach the file
+            for (int uid = 20000; uid < 22000; uid++) {
+                mSession.putHistory(uid, SET_DEFAULT, mRed);
+            }
+            mSession.failUid = UID_GREEN;
+            mSession.putHistory(UID_GREEN, SET_DEFAULT, mBlue);
+            try {
+                DataUsageExport.export(
+                        mSession, mTemplate, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS, file);
+                fail("expected RemoteException");
+            } catch (RemoteException e) {
+            }
+            assertEquals(firstLength, file.length());
+
+            // later exports append after the first chunk and read back
+            mSession.failUid = -1;
+            DataUsageExport.export(
+                    mSession, mTemplate, TEST_START, TEST_START + 24 * HOUR_IN_MILLIS, file);
+            assertEquals(2, DataUsageExport.read(file, new RecordingVisitor()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Append a chunk with both test histories, as
+     * {@link DataUsageExport#export} would for a session holding them.
+     */
+    private void writeChunk(ByteArrayOutputStream raw, String subscriberId, long start,
+            long end) throws IOException {
+        final DataOutputStream out = DataUsageExport.beginChunk(
+                raw, MATCH_MOBILE_ALL, subscriberId, start, end);
+        DataUsageExport.writeHistory(out, UID_RED, SET_DEFAULT, mRed, start, end);
+        DataUsageExport.writeHistory(out, UID_BLUE, SET_FOREGROUND, mBlue, start, end);
+        DataUsageExport.endChunk(out);
+    }
+
+    private static String bucket(int uid, int set, long bucketStart, long rxBytes,
+            long rxPackets, long txBytes, long txPackets) {
+        return "bucket " + uid + " " + set + " " + bucketStart + " " + HOUR_IN_MILLIS + " "
+                + rxBytes + " " + rxPackets + " " + txBytes + " " + txPackets;
+    }
+
+    private static class RecordingVisitor implements DataUsageExport.Visitor {
+        public final ArrayList<String> events = new ArrayList<String>();
+
+        @Override
+        public void onChunk(int matchRule, String subscriberId, long start, long end) {
+            events.add("chunk " + matchRule + " " + subscriberId);
+        }
+
+        @Override
+        public void onBucket(int uid, int set, long bucketStart, long bucketDuration,
+                long rxBytes, long rxPackets, long txBytes, long txPackets) {
+            events.add("bucket " + uid + " " + set + " " + bucketStart + " " + bucketDuration
+                    + " " + rxBytes + " " + rxPackets + " " + txBytes + " " + txPackets);
+        }
+    }
+
+    /**
+     * {@link INetworkStatsSession} backed by fixed per-UID histories.
+     */
+    private static class FakeSession extends INetworkStatsSession.Stub {
+        private final ArrayList<int[]> mRows = new ArrayList<int[]>();
+        private final SparseArray<NetworkStatsHistory> mHistory =
+                new SparseArray<NetworkStatsHistory>();
+
+        /** UIDs whose history was requested, in order. */
+        public final ArrayList<Integer> requestedUids = new ArrayList<Integer>();
+        /** UID whose history request fails, or -1. */
+        public int failUid = -1;
+
+        public void putHistory(int uid, int set, NetworkStatsHistory history) {
+            mRows.add(new int[] { uid, set, TAG_NONE });
+            mHistory.put(uid, history);
+        }
+
+        public void putTag(int uid, int set, int tag) {
+            mRows.add(new int[] { uid, set, tag });
+        }
+
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(
+                NetworkTemplate template, long start, long end, boolean includeTags) {
+            final NetworkStats stats = new NetworkStats(0L, mRows.size());
+            for (int[] row : mRows) {
+                // usage itself doesn't matter, only which rows exist
+                stats.addValues(IFACE_ALL, row[0], row[1], row[2], 1L, 1L, 1L, 1L, 0L);
+            }
+            return stats;
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+                int tag, int fields) throws RemoteException {
+            assertEquals(TAG_NONE, tag);
+            requestedUids.add(uid);
+            if (uid == failUid) throw new RemoteException();
+            return mHistory.get(uid);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
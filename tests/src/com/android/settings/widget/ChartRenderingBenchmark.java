@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.net.TrafficStats.GB_IN_BYTES;
+import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.SpannableStringBuilder;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import com.android.settings.BenchmarkMeasurement;
+import com.android.settings.R;
+
+/**
+ * Benchmark of data usage chart rendering, feeding synthetic
+ * {@link NetworkStatsHistory} through {@link ChartDataUsageView} path
+ * generation and axis label building. Draws into an offscreen {@link Bitmap},
+ * so it doesn't need a window. Results are logged as time and allocations
+ * per frame, for example:
+ * <pre>
+ * adb shell am instrument -w -e class com.android.settings.widget.ChartRenderingBenchmark \
+ *         com.android.settings.tests/android.test.InstrumentationTestRunner
+ * adb logcat -s ChartRenderingBenchmark
+ * </pre>
+ */
+@LargeTest
+public class ChartRenderingBenchmark extends AndroidTestCase {
+    private static final String TAG = "ChartRenderingBenchmark";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 30;
+
+    private ChartDataUsageView mChart;
+    private ChartNetworkSeriesView mSeries;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // chart posts axis updates through its own handler
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+
+        mChart = (ChartDataUsageView) LayoutInflater.from(getContext()).inflate(
+                R.layout.data_usage_chart, null);
+        mSeries = (ChartNetworkSeriesView) mChart.findViewById(R.id.series);
+
+        // measure raw rasterization rather than cached layers
+        mChart.setCacheSeriesLayers(false);
+
+        mCanvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testSeries100() {
+        benchmarkSeries(100);
+    }
+
+    public void testSeries10k() {
+        benchmarkSeries(10000);
+    }
+
+    public void testSeries100k() {
+        benchmarkSeries(100000);
+    }
+
+    public void testDataAxisLabels() {
+        final ChartDataUsageView.DataAxis axis = new ChartDataUsageView.DataAxis();
+        final SpannableStringBuilder builder = new SpannableStringBuilder(
+                getContext().getText(R.string.data_usage_sweep_warning));
+
+        final BenchmarkMeasurement m = new BenchmarkMeasurement(TAG, "labels", "frame");
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            if (i == WARMUP_FRAMES) m.start();
+
+            // one "frame" walks a sweep across the entire axis
+            for (long value = 0; value < 4 * GB_IN_BYTES; value += 16 * MB_IN_BYTES) {
+                axis.buildLabel(getContext().getResources(), builder, value);
+            }
+        }
+        m.stop(FRAMES);
+    }
+
+    public void testPieChart() {
+        final PieChartView pie = new PieChartView(getContext());
+        layout(pie, HEIGHT, HEIGHT);
+
+        final BenchmarkMeasurement m = new BenchmarkMeasurement(TAG, "pie", "frame");
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            if (i == WARMUP_FRAMES) m.start();
+
+            pie.removeAllSlices();
+            pie.addSlice(i + 1, Color.parseColor("#d88d3a"));
+            pie.addSlice(FRAMES, Color.parseColor("#666666"));
+            pie.generatePath();
+            pie.draw(mCanvas);
+        }
+        m.stop(FRAMES);
+    }
+
+    private void benchmarkSeries(int bucketCount) {
+        final NetworkStatsHistory history = buildHistory(bucketCount);
+        mChart.bindNetworkStats(history);
+        layout(mChart, WIDTH, HEIGHT);
+        mChart.setVisibleRange(history.getStart(), history.getEnd());
+
+        // full frames regenerate every path, as when axis scale changes
+        final BenchmarkMeasurement full = new BenchmarkMeasurement(TAG,
+                "series[" + bucketCount + "] generate", "frame");
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            if (i == WARMUP_FRAMES) full.start();
+            mSeries.invalidatePath();
+            mChart.draw(mCanvas);
+        }
+        full.stop(FRAMES);
+
+        // steady frames only repaint existing paths, as during sweep drags
+        final BenchmarkMeasurement steady = new BenchmarkMeasurement(TAG,
+                "series[" + bucketCount + "] draw", "frame");
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            if (i == WARMUP_FRAMES) steady.start();
+            mChart.draw(mCanvas);
+        }
+        steady.stop(FRAMES);
+
+        // grid ticks and time labels are rebuilt whenever range changes
+        final BenchmarkMeasurement range = new BenchmarkMeasurement(TAG,
+                "series[" + bucketCount + "] range", "frame");
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            if (i == WARMUP_FRAMES) range.start();
+            mChart.setVisibleRange(history.getStart() + (i % 2) * HOUR_IN_MILLIS,
+                    history.getEnd());
+            mChart.draw(mCanvas);
+        }
+        range.stop(FRAMES);
+    }
+
+    private static NetworkStatsHistory buildHistory(int bucketCount) {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, bucketCount);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+
+        final long start = System.currentTimeMillis() - (bucketCount * HOUR_IN_MILLIS);
+        for (int i = 0; i < bucketCount; i++) {
+            // vary usage so path segments aren't collinear
+            entry.rxBytes = (i % 24) * 64 * 1024;
+            entry.txBytes = (i % 7) * 16 * 1024;
+            final long bucketStart = start + (i * HOUR_IN_MILLIS);
+            history.recordData(bucketStart, bucketStart + HOUR_IN_MILLIS, entry);
+        }
+        return history;
+    }
+
+    private static void layout(View view, int width, int height) {
+        view.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+        view.layout(0, 0, width, height);
+    }
+}